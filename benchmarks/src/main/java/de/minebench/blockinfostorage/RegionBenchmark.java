@@ -0,0 +1,138 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.bukkit.NamespacedKey;
+import org.bukkit.World;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the in-memory operations on a loaded region
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RegionBenchmark {
+
+    private static final int MASK = 4095;
+
+    @SuppressWarnings("deprecation")
+    private static final NamespacedKey OWNER = new NamespacedKey("bench", "owner");
+    @SuppressWarnings("deprecation")
+    private static final NamespacedKey COUNT = new NamespacedKey("bench", "count");
+
+    @Param({"10000"})
+    private int blocks;
+
+    private File folder;
+    private Region region;
+
+    private final int[] hitX = new int[MASK + 1];
+    private final int[] hitY = new int[MASK + 1];
+    private final int[] hitZ = new int[MASK + 1];
+    private final int[] missX = new int[MASK + 1];
+    private final int[] missY = new int[MASK + 1];
+    private final int[] missZ = new int[MASK + 1];
+    private int index = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        folder = Stubs.tempFolder();
+        World world = Stubs.world(folder);
+        region = Stubs.region(world, Stubs.keyIndex(world), 0, 0);
+        Random random = new Random(42);
+        int[][] tagged = new int[blocks][];
+        for (int i = 0; i < blocks; i++) {
+            tagged[i] = new int[]{random.nextInt(512), random.nextInt(256), random.nextInt(512)};
+            region.setInfo(tagged[i][0], tagged[i][1], tagged[i][2], OWNER, "owner-" + i);
+            region.setInfo(tagged[i][0], tagged[i][1], tagged[i][2], COUNT, i);
+        }
+        for (int i = 0; i <= MASK; i++) {
+            int[] block = tagged[random.nextInt(blocks)];
+            hitX[i] = block[0];
+            hitY[i] = block[1];
+            hitZ[i] = block[2];
+            // Negative Y coordinates never get tagged in the setup
+            missX[i] = random.nextInt(512);
+            missY[i] = -1 - random.nextInt(64);
+            missZ[i] = random.nextInt(512);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Stubs.delete(folder);
+    }
+
+    @Benchmark
+    public void setInfo() {
+        int i = index++ & MASK;
+        region.setInfo(hitX[i], hitY[i], hitZ[i], COUNT, i);
+    }
+
+    @Benchmark
+    public Object getInfoValue() {
+        int i = index++ & MASK;
+        return region.getInfoValue(hitX[i], hitY[i], hitZ[i], OWNER);
+    }
+
+    @Benchmark
+    public Object getInfoValueMiss() {
+        int i = index++ & MASK;
+        return region.getInfoValue(missX[i], missY[i], missZ[i], OWNER);
+    }
+
+    /**
+     * The check that block events do before removing info, columns are random so most of them are untagged
+     */
+    @Benchmark
+    public boolean mayHaveInfo() {
+        int i = index++ & MASK;
+        return region.mayHaveInfo(missX[i], missZ[i]);
+    }
+
+    /**
+     * Adds a key to an untagged block and removes it again so that the region's size stays constant
+     */
+    @Benchmark
+    public void setAndRemoveInfo() {
+        int i = index++ & MASK;
+        region.setInfo(missX[i], missY[i], missZ[i], COUNT, i);
+        region.removeInfo(missX[i], missY[i], missZ[i], COUNT);
+    }
+}
@@ -0,0 +1,151 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.bukkit.NamespacedKey;
+import org.bukkit.World;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of reading a region from and writing it to the disk
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class RegionIOBenchmark {
+
+    @SuppressWarnings("deprecation")
+    private static final NamespacedKey OWNER = new NamespacedKey("bench", "owner");
+    @SuppressWarnings("deprecation")
+    private static final NamespacedKey COUNT = new NamespacedKey("bench", "count");
+
+    private static final int READS = 100;
+
+    @Param({"1000", "10000", "100000"})
+    private int blocks;
+
+    private File folder;
+    private World world;
+    private KeyIndex keyIndex;
+    private Region written;
+    private Region toSave;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        folder = Stubs.tempFolder();
+        world = Stubs.world(folder);
+        keyIndex = Stubs.keyIndex(world);
+        written = fill(Stubs.region(world, keyIndex, 0, 0));
+        written.write(written.snapshot());
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() throws IOException {
+        Files.deleteIfExists(new File(folder, "blockinfo/bi.1.0.bis").toPath());
+        toSave = fill(Stubs.region(world, keyIndex, 1, 0));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Stubs.delete(folder);
+    }
+
+    private Region fill(Region region) {
+        Random random = new Random(42);
+        for (int i = 0; i < blocks; i++) {
+            int x = random.nextInt(512);
+            int y = random.nextInt(256);
+            int z = random.nextInt(512);
+            region.setInfo(x, y, z, OWNER, new UUID(random.nextLong(), random.nextLong()));
+            region.setInfo(x, y, z, COUNT, i);
+        }
+        return region;
+    }
+
+    /**
+     * Load the region and read the data of all of its chunks
+     */
+    @Benchmark
+    public int load() throws IOException {
+        Region region = Stubs.region(world, keyIndex, 0, 0);
+        int[] count = new int[1];
+        region.forEachBlock(0, Integer.MIN_VALUE, 0, 511, Integer.MAX_VALUE, 511, (x, y, z, info) -> count[0]++);
+        return count[0];
+    }
+
+    /**
+     * Load the region and read a value of some of its blocks from the heap
+     */
+    @Benchmark
+    public long readHeap() throws IOException {
+        return read(Stubs.region(world, keyIndex, 0, 0));
+    }
+
+    /**
+     * Load the region and read a value of some of its blocks in place from the mapped file
+     */
+    @Benchmark
+    public long readMapped() throws IOException {
+        return read(Stubs.region(world, keyIndex, 0, 0, true));
+    }
+
+    private long read(Region region) {
+        Random random = new Random(42);
+        long sum = 0;
+        for (int i = 0; i < READS; i++) {
+            int x = random.nextInt(512);
+            int y = random.nextInt(256);
+            int z = random.nextInt(512);
+            random.nextLong();
+            random.nextLong();
+            sum += region.getLong(x, y, z, COUNT, 0);
+        }
+        return sum;
+    }
+
+    /**
+     * Write a region whose chunks are all modified
+     */
+    @Benchmark
+    public void save() throws IOException {
+        toSave.write(toSave.snapshot());
+    }
+}
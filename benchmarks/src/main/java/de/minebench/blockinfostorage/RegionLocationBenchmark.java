@@ -0,0 +1,81 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.bukkit.World;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of resolving region locations from many threads at once, like the
+ * main thread and the I/O threads do. The thread count can be changed with -t.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class RegionLocationBenchmark {
+
+    private File folder;
+    private UUID worldId;
+    private RegionLocations locations;
+
+    @Setup
+    public void setup() throws IOException {
+        folder = Stubs.tempFolder();
+        World world = Stubs.world(folder);
+        worldId = world.getUID();
+        locations = new RegionLocations();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Stubs.delete(folder);
+    }
+
+    /**
+     * Look up blocks spread over 32x32 regions, after warmup all of them exist already
+     */
+    @Benchmark
+    public Region.Location getRegionLocation() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int x = random.nextInt(-8192, 8192);
+        int z = random.nextInt(-8192, 8192);
+        return locations.get(worldId, x >> 9, z >> 9);
+    }
+}
@@ -0,0 +1,137 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.bukkit.World;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * Minimal stand-ins for the Bukkit objects the storage needs, so that the benchmarks run without a server
+ */
+final class Stubs {
+
+    private Stubs() {}
+
+    /**
+     * Create a world which only knows its ID, name and folder
+     * @param folder    The world's folder
+     * @return The stubbed world
+     */
+    static World world(File folder) {
+        UUID id = UUID.randomUUID();
+        return (World) Proxy.newProxyInstance(World.class.getClassLoader(), new Class<?>[]{World.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getUID":
+                    return id;
+                case "getName":
+                    return folder.getName();
+                case "getWorldFolder":
+                    return folder;
+                case "hashCode":
+                    return id.hashCode();
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "StubWorld{" + folder.getName() + "}";
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    /**
+     * Create a backend which stores the region files in a world's block info folder
+     * @param world         The world
+     * @param memoryMapped  Whether or not region files should be read from a memory mapping
+     * @return The backend
+     */
+    static StorageBackend backend(World world, boolean memoryMapped) {
+        File folder = new File(world.getWorldFolder(), "blockinfo");
+        return new FileStorageBackend(worldId -> folder, worldId -> memoryMapped, 6, Logger.getAnonymousLogger());
+    }
+
+    /**
+     * Load the key index of a world's block info folder
+     * @param world The world
+     * @return The key index
+     */
+    static KeyIndex keyIndex(World world) {
+        File folder = new File(world.getWorldFolder(), "blockinfo");
+        return KeyIndex.load(folder, world.getUID(), backend(world, false), null, Runnable::run, Logger.getAnonymousLogger());
+    }
+
+    /**
+     * Create a new region in a world's block info folder. The region is already loaded.
+     * @param world     The world
+     * @param keyIndex  The key index of the world
+     * @param regionX   The X coordinate of the region
+     * @param regionZ   The Z coordinate of the region
+     * @return The region
+     * @throws IOException When the region could not be loaded
+     */
+    static Region region(World world, KeyIndex keyIndex, int regionX, int regionZ) throws IOException {
+        return region(world, keyIndex, regionX, regionZ, false);
+    }
+
+    /**
+     * Create a new region in a world's block info folder. The region is already loaded.
+     * @param world         The world
+     * @param keyIndex      The key index of the world
+     * @param regionX       The X coordinate of the region
+     * @param regionZ       The Z coordinate of the region
+     * @param memoryMapped  Whether or not the region file should be read from a memory mapping
+     * @return The region
+     * @throws IOException When the region could not be loaded
+     */
+    static Region region(World world, KeyIndex keyIndex, int regionX, int regionZ, boolean memoryMapped) throws IOException {
+        Region region = new Region(new Region.Location(world.getUID(), regionX, regionZ), keyIndex, null, backend(world, memoryMapped), null, null);
+        region.load();
+        return region;
+    }
+
+    static File tempFolder() throws IOException {
+        return Files.createTempDirectory("blockinfostorage-bench").toFile();
+    }
+
+    static void delete(File folder) throws IOException {
+        Files.walkFileTree(folder.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
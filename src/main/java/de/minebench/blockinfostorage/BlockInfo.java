@@ -0,0 +1,391 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * The entries of a single block, stored as parallel arrays of {@link KeyRegistry} ids and values.
+ * Blocks rarely hold more than a handful of entries so a linear scan is the fastest lookup.
+ * Ints, longs, doubles, booleans and UUIDs are stored unboxed in two primitive slots per entry,
+ * all other values are stored as objects. Entries which expire keep their expiry timestamp in
+ * another array that only gets created once the first expiring entry gets set.
+ */
+class BlockInfo {
+
+    static final byte TYPE_OBJECT = 0;
+    static final byte TYPE_INT = 1;
+    static final byte TYPE_LONG = 2;
+    static final byte TYPE_DOUBLE = 3;
+    static final byte TYPE_BOOLEAN = 4;
+    static final byte TYPE_UUID = 5;
+
+    private int[] keys;
+    private byte[] types;
+    private long[] primitives;
+    private Object[] values;
+    private long[] expiries = null;
+    private int size = 0;
+
+    BlockInfo() {
+        this(2);
+    }
+
+    private BlockInfo(int capacity) {
+        keys = new int[capacity];
+        types = new byte[capacity];
+        primitives = new long[capacity * 2];
+        values = new Object[capacity];
+    }
+
+    private BlockInfo(BlockInfo other) {
+        int capacity = Math.max(2, other.size);
+        keys = Arrays.copyOf(other.keys, capacity);
+        types = Arrays.copyOf(other.types, capacity);
+        primitives = Arrays.copyOf(other.primitives, capacity * 2);
+        values = Arrays.copyOf(other.values, capacity);
+        if (other.expiries != null) {
+            expiries = Arrays.copyOf(other.expiries, capacity);
+        }
+        size = other.size;
+    }
+
+    int indexOf(int keyId) {
+        for (int i = 0; i < size; i++) {
+            if (keys[i] == keyId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    boolean has(int keyId) {
+        return indexOf(keyId) >= 0;
+    }
+
+    Object get(int keyId) {
+        int i = indexOf(keyId);
+        return i < 0 ? null : valueAt(i);
+    }
+
+    long getLong(int keyId, long def) {
+        int i = indexOf(keyId);
+        if (i < 0) {
+            return def;
+        }
+        switch (types[i]) {
+            case TYPE_INT:
+            case TYPE_LONG:
+                return primitives[i * 2];
+            case TYPE_DOUBLE:
+                return (long) Double.longBitsToDouble(primitives[i * 2]);
+            case TYPE_OBJECT:
+                return values[i] instanceof Number ? ((Number) values[i]).longValue() : def;
+            default:
+                return def;
+        }
+    }
+
+    double getDouble(int keyId, double def) {
+        int i = indexOf(keyId);
+        if (i < 0) {
+            return def;
+        }
+        switch (types[i]) {
+            case TYPE_INT:
+            case TYPE_LONG:
+                return primitives[i * 2];
+            case TYPE_DOUBLE:
+                return Double.longBitsToDouble(primitives[i * 2]);
+            case TYPE_OBJECT:
+                return values[i] instanceof Number ? ((Number) values[i]).doubleValue() : def;
+            default:
+                return def;
+        }
+    }
+
+    boolean getBoolean(int keyId, boolean def) {
+        int i = indexOf(keyId);
+        return i < 0 || types[i] != TYPE_BOOLEAN ? def : primitives[i * 2] != 0;
+    }
+
+    UUID getUUID(int keyId) {
+        int i = indexOf(keyId);
+        return i < 0 || types[i] != TYPE_UUID ? null : new UUID(primitives[i * 2], primitives[i * 2 + 1]);
+    }
+
+    /**
+     * Set the value of a key. Values with a primitive representation get stored unboxed.
+     * The expiry of an {@link ExpiringValue} gets stored next to its value, any other
+     * value replaces the key's expiry.
+     * @param keyId The id of the key
+     * @param value The value, must not be null
+     * @return Whether or not the key was added
+     */
+    boolean set(int keyId, Object value) {
+        if (value instanceof ExpiringValue) {
+            boolean added = set(keyId, ((ExpiringValue) value).getValue());
+            setExpiry(indexOf(keyId), ((ExpiringValue) value).getExpiresAt());
+            return added;
+        } else if (value instanceof Integer) {
+            return set(keyId, TYPE_INT, (Integer) value, 0);
+        } else if (value instanceof Long) {
+            return set(keyId, TYPE_LONG, (Long) value, 0);
+        } else if (value instanceof Double) {
+            return set(keyId, TYPE_DOUBLE, Double.doubleToRawLongBits((Double) value), 0);
+        } else if (value instanceof Boolean) {
+            return set(keyId, TYPE_BOOLEAN, (Boolean) value ? 1 : 0, 0);
+        } else if (value instanceof UUID) {
+            return set(keyId, TYPE_UUID, ((UUID) value).getMostSignificantBits(), ((UUID) value).getLeastSignificantBits());
+        }
+        int i = slot(keyId);
+        boolean added = i == size;
+        if (added) {
+            size++;
+        }
+        types[i] = TYPE_OBJECT;
+        values[i] = value;
+        setExpiry(i, 0);
+        return added;
+    }
+
+    /**
+     * Set the primitive value of a key
+     * @param keyId The id of the key
+     * @param type  The type of the value, not {@link #TYPE_OBJECT}
+     * @param bits  The value or the first half of it
+     * @param bits2 The second half of the value if it has one
+     * @return Whether or not the key was added
+     */
+    boolean set(int keyId, byte type, long bits, long bits2) {
+        int i = slot(keyId);
+        boolean added = i == size;
+        if (added) {
+            size++;
+        }
+        types[i] = type;
+        primitives[i * 2] = bits;
+        primitives[i * 2 + 1] = bits2;
+        values[i] = null;
+        setExpiry(i, 0);
+        return added;
+    }
+
+    private int slot(int keyId) {
+        int i = indexOf(keyId);
+        if (i >= 0) {
+            return i;
+        }
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            types = Arrays.copyOf(types, size * 2);
+            primitives = Arrays.copyOf(primitives, size * 4);
+            values = Arrays.copyOf(values, size * 2);
+            if (expiries != null) {
+                expiries = Arrays.copyOf(expiries, size * 2);
+            }
+        }
+        keys[size] = keyId;
+        return size;
+    }
+
+    /**
+     * Remove the value of a key
+     * @param keyId The id of the key
+     * @return Whether or not the key had a value
+     */
+    boolean remove(int keyId) {
+        int i = indexOf(keyId);
+        if (i < 0) {
+            return false;
+        }
+        removeAt(i);
+        return true;
+    }
+
+    /**
+     * Remove all values whose key has a certain namespace
+     * @param namespaceId The id of the namespace
+     * @return Whether or not anything was removed
+     */
+    boolean removeNamespace(int namespaceId) {
+        boolean removed = false;
+        for (int i = size - 1; i >= 0; i--) {
+            if (KeyRegistry.namespace(keys[i]) == namespaceId) {
+                removeAt(i);
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    private void removeAt(int i) {
+        size--;
+        keys[i] = keys[size];
+        types[i] = types[size];
+        primitives[i * 2] = primitives[size * 2];
+        primitives[i * 2 + 1] = primitives[size * 2 + 1];
+        values[i] = values[size];
+        values[size] = null;
+        if (expiries != null) {
+            expiries[i] = expiries[size];
+            expiries[size] = 0;
+        }
+    }
+
+    private void setExpiry(int i, long expiresAt) {
+        if (expiries == null) {
+            if (expiresAt == 0) {
+                return;
+            }
+            expiries = new long[keys.length];
+        }
+        expiries[i] = expiresAt;
+    }
+
+    /**
+     * Get the time at which an entry expires
+     * @param i The index of the entry
+     * @return The timestamp in milliseconds or 0 if the entry doesn't expire
+     */
+    long expiryAt(int i) {
+        return expiries != null ? expiries[i] : 0;
+    }
+
+    /**
+     * Check whether or not entries of this info might expire. This is meant to skip
+     * looking at the current time for the vast majority of blocks which never expire.
+     * @return false if no entry expires
+     */
+    boolean hasExpiring() {
+        return expiries != null;
+    }
+
+    /**
+     * Check whether or not an entry expired
+     * @param i     The index of the entry
+     * @param now   The current time in milliseconds
+     * @return true if the entry has an expiry which isn't after the current time
+     */
+    boolean isExpired(int i, long now) {
+        return expiries != null && expiries[i] != 0 && expiries[i] <= now;
+    }
+
+    /**
+     * Check whether or not any entry expired
+     * @param now   The current time in milliseconds
+     * @return true if at least one entry expired
+     */
+    boolean hasExpired(long now) {
+        if (expiries != null) {
+            for (int i = 0; i < size; i++) {
+                if (isExpired(i, now)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove all entries which expired
+     * @param now   The current time in milliseconds
+     * @return Whether or not anything was removed
+     */
+    boolean removeExpired(long now) {
+        boolean removed = false;
+        if (expiries != null) {
+            for (int i = size - 1; i >= 0; i--) {
+                if (isExpired(i, now)) {
+                    removeAt(i);
+                    removed = true;
+                }
+            }
+        }
+        return removed;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int keyAt(int i) {
+        return keys[i];
+    }
+
+    byte typeAt(int i) {
+        return types[i];
+    }
+
+    long bitsAt(int i) {
+        return primitives[i * 2];
+    }
+
+    long bits2At(int i) {
+        return primitives[i * 2 + 1];
+    }
+
+    /**
+     * Get the stored object of an entry without decoding it
+     * @param i The index of the entry
+     * @return The object or null if the entry has a primitive value
+     */
+    Object objectAt(int i) {
+        return values[i];
+    }
+
+    /**
+     * Get the value of an entry. Primitive values get boxed and values of plugin
+     * types which weren't decoded yet get decoded if their codec is registered now.
+     * @param i The index of the entry
+     * @return The value
+     */
+    Object valueAt(int i) {
+        switch (types[i]) {
+            case TYPE_INT:
+                return (int) primitives[i * 2];
+            case TYPE_LONG:
+                return primitives[i * 2];
+            case TYPE_DOUBLE:
+                return Double.longBitsToDouble(primitives[i * 2]);
+            case TYPE_BOOLEAN:
+                return primitives[i * 2] != 0;
+            case TYPE_UUID:
+                return new UUID(primitives[i * 2], primitives[i * 2 + 1]);
+            default:
+                if (values[i] instanceof EncodedValue) {
+                    Object decoded = ((EncodedValue) values[i]).decode();
+                    if (decoded != null) {
+                        values[i] = decoded;
+                    }
+                    return decoded != null ? decoded : values[i];
+                }
+                return values[i];
+        }
+    }
+
+    BlockInfo copy() {
+        return new BlockInfo(this);
+    }
+}
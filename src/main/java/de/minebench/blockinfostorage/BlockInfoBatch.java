@@ -0,0 +1,237 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.bukkit.Location;
+import org.bukkit.NamespacedKey;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects modifications of block info and applies them all at once. The modifications are
+ * grouped by region so that every region is only looked up and locked once when committing.
+ * All regions of a batch are locked at the same time so the batch becomes visible atomically.
+ * A batch is not thread safe and should only be used by one thread.
+ */
+public class BlockInfoBatch {
+
+    private static final byte SET = 1;
+    private static final byte REMOVE_KEY = 2;
+    private static final byte REMOVE_ALL = 3;
+
+    private final BlockInfoStorage storage;
+    private final Map<Region.Location, Operations> operations = new LinkedHashMap<>();
+    private int size = 0;
+
+    private World lastWorld = null;
+    private int lastRegionX;
+    private int lastRegionZ;
+    private Operations last = null;
+
+    BlockInfoBatch(BlockInfoStorage storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Set block info when the batch gets committed
+     * @param block The block to attach the info to
+     * @param key   The key to set
+     * @param value The value to set, null to remove it
+     * @return This batch
+     */
+    public BlockInfoBatch set(Block block, NamespacedKey key, Object value) {
+        return add(block.getWorld(), block.getX(), block.getY(), block.getZ(), SET, key, value);
+    }
+
+    /**
+     * Set block info when the batch gets committed
+     * @param location  The location of the block to attach the info to
+     * @param key       The key to set
+     * @param value     The value to set, null to remove it
+     * @return This batch
+     */
+    public BlockInfoBatch set(Location location, NamespacedKey key, Object value) {
+        return add(location.getWorld(), location.getBlockX(), location.getBlockY(), location.getBlockZ(), SET, key, value);
+    }
+
+    /**
+     * Set block info which expires after a certain time when the batch gets committed
+     * @param block The block to attach the info to
+     * @param key   The key to set
+     * @param value The value to set, null to remove it
+     * @param ttl   The time to live of the value counted from now, has to be positive
+     * @param unit  The unit of the time to live
+     * @return This batch
+     * @throws IllegalArgumentException When the time to live isn't positive
+     */
+    public BlockInfoBatch set(Block block, NamespacedKey key, Object value, long ttl, TimeUnit unit) {
+        return add(block.getWorld(), block.getX(), block.getY(), block.getZ(), SET, key, ExpiringValue.of(value, ttl, unit));
+    }
+
+    /**
+     * Set block info which expires after a certain time when the batch gets committed
+     * @param location  The location of the block to attach the info to
+     * @param key       The key to set
+     * @param value     The value to set, null to remove it
+     * @param ttl       The time to live of the value counted from now, has to be positive
+     * @param unit      The unit of the time to live
+     * @return This batch
+     * @throws IllegalArgumentException When the time to live isn't positive
+     */
+    public BlockInfoBatch set(Location location, NamespacedKey key, Object value, long ttl, TimeUnit unit) {
+        return add(location.getWorld(), location.getBlockX(), location.getBlockY(), location.getBlockZ(), SET, key, ExpiringValue.of(value, ttl, unit));
+    }
+
+    /**
+     * Remove block info with a certain key when the batch gets committed
+     * @param block The block to remove the info from
+     * @param key   The key to remove
+     * @return This batch
+     */
+    public BlockInfoBatch remove(Block block, NamespacedKey key) {
+        return add(block.getWorld(), block.getX(), block.getY(), block.getZ(), REMOVE_KEY, key, null);
+    }
+
+    /**
+     * Remove block info with a certain key when the batch gets committed
+     * @param location  The location of the block to remove the info from
+     * @param key       The key to remove
+     * @return This batch
+     */
+    public BlockInfoBatch remove(Location location, NamespacedKey key) {
+        return add(location.getWorld(), location.getBlockX(), location.getBlockY(), location.getBlockZ(), REMOVE_KEY, key, null);
+    }
+
+    /**
+     * Remove all info of a block when the batch gets committed
+     * @param block The block to remove the info from
+     * @return This batch
+     */
+    public BlockInfoBatch remove(Block block) {
+        return add(block.getWorld(), block.getX(), block.getY(), block.getZ(), REMOVE_ALL, null, null);
+    }
+
+    /**
+     * Remove all info of a block when the batch gets committed
+     * @param location  The location of the block to remove the info from
+     * @return This batch
+     */
+    public BlockInfoBatch remove(Location location) {
+        return add(location.getWorld(), location.getBlockX(), location.getBlockY(), location.getBlockZ(), REMOVE_ALL, null, null);
+    }
+
+    private BlockInfoBatch add(World world, int x, int y, int z, byte operation, NamespacedKey key, Object value) {
+        // Consecutive modifications are usually in the same region, don't look it up again
+        if (last == null || world != lastWorld || x >> 9 != lastRegionX || z >> 9 != lastRegionZ) {
+            lastWorld = world;
+            lastRegionX = x >> 9;
+            lastRegionZ = z >> 9;
+            last = operations.computeIfAbsent(storage.getRegionLocation(world, lastRegionX, lastRegionZ), l -> new Operations());
+        }
+        last.add(x, y, z, operation, key, value);
+        size++;
+        return this;
+    }
+
+    /**
+     * Get the amount of modifications in this batch
+     * @return The amount of modifications
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Check whether or not this batch has any modifications
+     * @return true if it has none
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Apply all modifications of this batch in the order they were added and clear it.
+     * The regions of the modifications get loaded if they aren't loaded yet.
+     */
+    public void commit() {
+        if (size == 0) {
+            return;
+        }
+        storage.commit(operations);
+        operations.clear();
+        size = 0;
+        lastWorld = null;
+        last = null;
+    }
+
+    /**
+     * The modifications of a single region
+     */
+    static class Operations {
+        private int[] positions = new int[48];
+        private byte[] types = new byte[16];
+        private NamespacedKey[] keys = new NamespacedKey[16];
+        private Object[] values = new Object[16];
+        private int size = 0;
+
+        private void add(int x, int y, int z, byte type, NamespacedKey key, Object value) {
+            if (size == types.length) {
+                positions = Arrays.copyOf(positions, size * 6);
+                types = Arrays.copyOf(types, size * 2);
+                keys = Arrays.copyOf(keys, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            positions[size * 3] = x;
+            positions[size * 3 + 1] = y;
+            positions[size * 3 + 2] = z;
+            types[size] = type;
+            keys[size] = key;
+            values[size] = value;
+            size++;
+        }
+
+        /**
+         * Apply the modifications to their region. The caller needs to hold the region's lock.
+         * @param region    The region
+         */
+        void apply(Region region) {
+            for (int i = 0; i < size; i++) {
+                int x = positions[i * 3];
+                int y = positions[i * 3 + 1];
+                int z = positions[i * 3 + 2];
+                switch (types[i]) {
+                    case SET:
+                        region.setInfo(x, y, z, keys[i], values[i]);
+                        break;
+                    case REMOVE_KEY:
+                        region.removeInfo(x, y, z, keys[i]);
+                        break;
+                    case REMOVE_ALL:
+                        region.removeInfo(x, y, z);
+                        break;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.bukkit.Location;
+import org.bukkit.NamespacedKey;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+/**
+ * A modification of the value of a key on a block
+ */
+public class BlockInfoChange {
+
+    private final World world;
+    private final int x;
+    private final int y;
+    private final int z;
+    private final NamespacedKey key;
+    private final Object value;
+
+    BlockInfoChange(World world, int x, int y, int z, NamespacedKey key, Object value) {
+        this.world = world;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.key = key;
+        this.value = value;
+    }
+
+    public World getWorld() {
+        return world;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public int getZ() {
+        return z;
+    }
+
+    /**
+     * Get the location of the block
+     * @return A new location of the block
+     */
+    public Location getLocation() {
+        return new Location(world, x, y, z);
+    }
+
+    /**
+     * Get the block, this should only be used on the main thread
+     * @return The block
+     */
+    public Block getBlock() {
+        return world.getBlockAt(x, y, z);
+    }
+
+    public NamespacedKey getKey() {
+        return key;
+    }
+
+    /**
+     * Get the value which the key was set to
+     * @return The new value or null if the key got removed, e.g. because the block got broken or the value expired
+     */
+    public Object getValue() {
+        return value;
+    }
+
+    /**
+     * Check whether or not the key got removed from the block
+     * @return true if it got removed, false if it got set
+     */
+    public boolean isRemoved() {
+        return value == null;
+    }
+
+    @Override
+    public String toString() {
+        return "BlockInfoChange{world=" + world.getName() + ", x=" + x + ", y=" + y + ", z=" + z + ", key=" + key + ", value=" + value + "}";
+    }
+}
@@ -0,0 +1,47 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Serializes values of a plugin-defined type into the binary storage format.
+ * Register it with {@link BlockInfoStorage#registerCodec(org.bukkit.NamespacedKey, Class, BlockInfoCodec)}.
+ * @param <T> The type of the values
+ */
+public interface BlockInfoCodec<T> {
+
+    /**
+     * Write a value
+     * @param out   The output to write to
+     * @param value The value to write
+     * @throws IOException When the value could not be written
+     */
+    void write(DataOutput out, T value) throws IOException;
+
+    /**
+     * Read a value which was written by {@link #write(DataOutput, Object)}
+     * @param in    The input to read from, it only contains the bytes of this value
+     * @return The read value
+     * @throws IOException When the value could not be read
+     */
+    T read(DataInput in) throws IOException;
+}
@@ -0,0 +1,35 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.List;
+
+/**
+ * Gets notified about modifications of block info.
+ * Register it with {@link BlockInfoStorage#subscribe(org.bukkit.plugin.Plugin, org.bukkit.NamespacedKey, BlockInfoListener)}.
+ */
+public interface BlockInfoListener {
+
+    /**
+     * Called once per tick on the main thread with the modifications of the last tick which match the subscription.
+     * Only the last modification of a key on a block in that tick is contained.
+     * @param changes   The modifications in the order in which the blocks were first modified
+     */
+    void onChange(List<BlockInfoChange> changes);
+}
@@ -18,11 +18,16 @@ package de.minebench.blockinfostorage;
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+import org.bukkit.ChatColor;
 import org.bukkit.Chunk;
 import org.bukkit.Location;
 import org.bukkit.NamespacedKey;
 import org.bukkit.World;
 import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.PistonMoveReaction;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
@@ -34,41 +39,183 @@ import org.bukkit.event.block.BlockFromToEvent;
 import org.bukkit.event.block.BlockPistonExtendEvent;
 import org.bukkit.event.block.BlockPistonRetractEvent;
 import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.server.PluginDisableEvent;
 import org.bukkit.event.world.ChunkLoadEvent;
 import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.WorldLoadEvent;
 import org.bukkit.event.world.WorldSaveEvent;
 import org.bukkit.event.world.WorldUnloadEvent;
 import org.bukkit.plugin.Plugin;
 import org.bukkit.plugin.java.JavaPlugin;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Stream;
 import java.util.logging.Level;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 public class BlockInfoStorage extends JavaPlugin implements Listener {
 
+    private static final long SHUTDOWN_TIMEOUT = 60;
+    private static final String MBEAN_NAME = "de.minebench.blockinfostorage:type=BlockInfoStorage";
+
     private static BlockInfoStorage instance;
 
-    private final Map<UUID, Map<Integer, Map<Integer, Region.Location>>> regionLocs = new HashMap<>();
-    private final Map<Region.Location, Region> dataMap = new ConcurrentHashMap<>();
+    private final RegionLocations regionLocs = new RegionLocations();
+    private final Map<Region.Location, CompletableFuture<Region>> loading = new ConcurrentHashMap<>();
+    private final Map<UUID, KeyIndex> keyIndexes = new ConcurrentHashMap<>();
+    private final Map<UUID, Journal> journals = new ConcurrentHashMap<>();
 
+    private ThreadPoolExecutor ioExecutor;
+    private ExecutorService indexExecutor;
+    private RegionWriter writer;
+    private RegionCache cache;
+    private boolean journalEnabled;
+    private StorageBackend backend;
+    private ExpiryWheel expiries;
+    private Subscriptions subscriptions;
+    private MetricsBean metrics;
 
     @Override
     public void onEnable() {
         instance = this;
+        AtomicInteger threadId = new AtomicInteger();
+        saveDefaultConfig();
+        int ioThreads = Math.max(1, getConfig().getInt("io.threads"));
+        ioExecutor = new ThreadPoolExecutor(ioThreads, ioThreads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                r -> new Thread(r, "BlockInfoStorage I/O #" + threadId.incrementAndGet()));
+        // Rebuilding a key index scans the whole world so it shouldn't compete with loading regions
+        indexExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "BlockInfoStorage Key Index");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        writer = new RegionWriter(getLogger(), ioThreads);
+        cache = new RegionCache(writer, getConfig().getLong("cache.memory-budget") * 1024 * 1024);
+        long checkInterval = getConfig().getLong("cache.check-interval") * 20;
+        if (checkInterval > 0) {
+            getServer().getScheduler().runTaskTimerAsynchronously(this, cache::evict, checkInterval, checkInterval);
+        }
+        journalEnabled = getConfig().getBoolean("journal.enabled");
+        backend = createBackend();
+        long sweepInterval = Math.max(1, getConfig().getLong("expiry.sweep-interval"));
+        expiries = new ExpiryWheel(sweepInterval * 50, System.currentTimeMillis());
+        getServer().getScheduler().runTaskTimerAsynchronously(this, this::expireBlockInfo, sweepInterval, sweepInterval);
+        subscriptions = new Subscriptions(getLogger());
+        getServer().getScheduler().runTaskTimer(this, () -> subscriptions.flush(getServer()::getWorld), 1, 1);
+        if (journalEnabled) {
+            long flushInterval = Math.max(1, getConfig().getLong("journal.flush-interval"));
+            getServer().getScheduler().runTaskTimerAsynchronously(this, this::flushJournals, flushInterval, flushInterval);
+            long compactInterval = getConfig().getLong("journal.compact-interval") * 20;
+            if (compactInterval > 0) {
+                getServer().getScheduler().runTaskTimer(this, () -> journals.keySet().forEach(this::compactJournal), compactInterval, compactInterval);
+            }
+        }
+        boolean preload = getConfig().getBoolean("io.preload");
+        for (World world : getServer().getWorlds()) {
+            getKeyIndex(world.getUID());
+            getJournal(world.getUID());
+            // These chunks got loaded before the plugin was enabled so there was no load event for them
+            for (Chunk chunk : world.getLoadedChunks()) {
+                if (preload) {
+                    loadChunk(chunk);
+                } else {
+                    cache.chunkLoaded(getRegionLocation(chunk), chunk.getX(), chunk.getZ());
+                }
+            }
+        }
+        metrics = new MetricsBean(cache, writer, ioExecutor, loading::size);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(MBEAN_NAME));
+        } catch (JMException e) {
+            getLogger().log(Level.WARNING, "Unable to register the metrics MBean", e);
+        }
         getServer().getPluginManager().registerEvents(this, this);
     }
 
     @Override
     public void onDisable() {
-        for (Region region : dataMap.values()) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(MBEAN_NAME));
+        } catch (JMException e) {
+            // Wasn't registered
+        }
+        // Unfinished indexes don't get saved and are rebuilt on the next start anyways
+        indexExecutor.shutdownNow();
+        ioExecutor.shutdown();
+        try {
+            ioExecutor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Region region : cache.getRegions()) {
             save(region);
         }
+        journals.keySet().forEach(this::compactJournal);
+        keyIndexes.values().forEach(writer::save);
+        if (!writer.shutdown(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+            getLogger().log(Level.WARNING, "Not all block info could be saved within " + SHUTDOWN_TIMEOUT + " seconds! "
+                    + writer.getQueueSize() + " regions were still waiting to be written.");
+        }
+        backend.close();
+    }
+
+    @Override
+    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+        if (args.length == 0 || !"stats".equalsIgnoreCase(args[0])) {
+            return false;
+        }
+        CacheStats cacheStats = metrics.getCacheStats();
+        sender.sendMessage(ChatColor.YELLOW + "BlockInfoStorage stats:");
+        sender.sendMessage(ChatColor.GRAY + "Cache: " + ChatColor.WHITE + cacheStats.getRegions() + " regions, "
+                + cacheStats.getEstimatedMemory() / 1024 / 1024 + "/" + cacheStats.getMemoryBudget() / 1024 / 1024 + " MB, "
+                + cacheStats.getHits() + " hits, " + cacheStats.getMisses() + " misses, " + cacheStats.getEvictions() + " evictions");
+        sender.sendMessage(ChatColor.GRAY + "Pending: " + ChatColor.WHITE + metrics.getPendingLoads() + " loads, "
+                + metrics.getPendingIoTasks() + " I/O tasks, " + metrics.getPendingWrites() + " writes");
+        sender.sendMessage(ChatColor.GRAY + "Region loads: " + ChatColor.WHITE + formatTime(metrics.getRegionLoadTime())
+                + ", " + formatAverage(metrics.getRegionLoadBytes(), "bytes"));
+        sender.sendMessage(ChatColor.GRAY + "Chunk reads: " + ChatColor.WHITE + formatTime(metrics.getChunkReadTime())
+                + ", " + formatAverage(metrics.getChunkReadBytes(), "bytes") + ", " + formatAverage(metrics.getChunkReadEntries(), "entries"));
+        sender.sendMessage(ChatColor.GRAY + "Region saves: " + ChatColor.WHITE + formatTime(metrics.getRegionSaveTime())
+                + ", " + formatAverage(metrics.getRegionSaveBytes(), "bytes") + ", " + formatAverage(metrics.getRegionSaveEntries(), "entries"));
+        sender.sendMessage(ChatColor.GRAY + "Blocking loads: " + ChatColor.WHITE + formatTime(metrics.getBlockingLoadTime()));
+        sender.sendMessage(ChatColor.GRAY + "Lock waits: " + ChatColor.WHITE + formatTime(metrics.getLockWaitTime()));
+        sender.sendMessage(ChatColor.GRAY + "Async chunk loads: " + ChatColor.WHITE + formatTime(metrics.getAsyncLoadTime()));
+        return true;
+    }
+
+    private static String formatTime(HistogramStats stats) {
+        return String.format(Locale.ROOT, "%d, avg %.2fms, p50 %.2fms, p99 %.2fms, max %.2fms", stats.getCount(),
+                stats.getMean() / 1000000, stats.getP50() / 1000000d, stats.getP99() / 1000000d, stats.getMax() / 1000000d);
+    }
+
+    private static String formatAverage(HistogramStats stats, String unit) {
+        return String.format(Locale.ROOT, "avg %.0f %s (max %d)", stats.getMean(), unit, stats.getMax());
     }
 
     // --- "API" ---
@@ -101,6 +248,54 @@ public class BlockInfoStorage extends JavaPlugin implements Listener {
         getRegion(location).setInfo(location.getBlockX(), location.getBlockY(), location.getBlockZ(), key, value);
     }
 
+    /**
+     * Set block info which expires after a certain time. Expired info is never returned and gets
+     * removed in the background. Setting the key again without a time to live makes it permanent.
+     * @param block The block to attach the info to
+     * @param key   The key to set
+     * @param value The value to set
+     * @param ttl   The time to live of the value, has to be positive
+     * @param unit  The unit of the time to live
+     * @throws IllegalArgumentException When the time to live isn't positive
+     */
+    public void setBlockInfo(Block block, NamespacedKey key, Object value, long ttl, TimeUnit unit) {
+        getRegion(block).setInfo(block.getX(), block.getY(), block.getZ(), key, ExpiringValue.of(value, ttl, unit));
+    }
+
+    /**
+     * Set block info which expires after a certain time. Expired info is never returned and gets
+     * removed in the background. Setting the key again without a time to live makes it permanent.
+     * @param location  The location of the block to attach the info to
+     * @param key       The key to set
+     * @param value     The value to set
+     * @param ttl       The time to live of the value, has to be positive
+     * @param unit      The unit of the time to live
+     * @throws IllegalArgumentException When the time to live isn't positive
+     */
+    public void setBlockInfo(Location location, NamespacedKey key, Object value, long ttl, TimeUnit unit) {
+        getRegion(location).setInfo(location.getBlockX(), location.getBlockY(), location.getBlockZ(), key, ExpiringValue.of(value, ttl, unit));
+    }
+
+    /**
+     * Get the time at which block info expires
+     * @param block The block the info is attached to
+     * @param key   The key of the info
+     * @return The timestamp in milliseconds or 0 if there is no such info or it doesn't expire
+     */
+    public long getBlockInfoExpiry(Block block, NamespacedKey key) {
+        return getRegion(block).getExpiry(block.getX(), block.getY(), block.getZ(), key);
+    }
+
+    /**
+     * Get the time at which block info expires
+     * @param location  The location of the block the info is attached to
+     * @param key       The key of the info
+     * @return The timestamp in milliseconds or 0 if there is no such info or it doesn't expire
+     */
+    public long getBlockInfoExpiry(Location location, NamespacedKey key) {
+        return getRegion(location).getExpiry(location.getBlockX(), location.getBlockY(), location.getBlockZ(), key);
+    }
+
     /**
      * Get information from a block. This is only for reading, use {@link #setBlockInfo(Block, NamespacedKey, Object)} for writing!
      * @param block     The block to attach the info to
@@ -185,7 +380,7 @@ public class BlockInfoStorage extends JavaPlugin implements Listener {
      * @param key   The key to remove
      */
     public void removeBlockInfo(Block block, NamespacedKey key) {
-        getRegion(block).removeInfo(block.getX(), block.getZ(), block.getY(), key.getNamespace() + "." + key.getKey());
+        getRegion(block).removeInfo(block.getX(), block.getY(), block.getZ(), key);
     }
 
     /**
@@ -194,7 +389,7 @@ public class BlockInfoStorage extends JavaPlugin implements Listener {
      * @param key       The key to remove
      */
     public void removeBlockInfo(Location location, NamespacedKey key) {
-        getRegion(location).removeInfo(location.getBlockX(), location.getBlockY(), location.getBlockZ(), key.getNamespace() + "." + key.getKey());
+        getRegion(location).removeInfo(location.getBlockX(), location.getBlockY(), location.getBlockZ(), key);
     }
 
     /**
@@ -203,7 +398,7 @@ public class BlockInfoStorage extends JavaPlugin implements Listener {
      * @param type  The type to remove
      */
     public void removeBlockInfo(Block block, String type) {
-        getRegion(block).removeInfo(block.getX(), block.getZ(), block.getY(), type.toLowerCase(Locale.ENGLISH));
+        getRegion(block).removeInfo(block.getX(), block.getY(), block.getZ(), type.toLowerCase(Locale.ENGLISH));
     }
 
     /**
@@ -231,6 +426,717 @@ public class BlockInfoStorage extends JavaPlugin implements Listener {
         getRegion(location).removeInfo(location.getBlockX(), location.getBlockY(), location.getBlockZ());
     }
 
+    /**
+     * Get statistics about the cache of loaded regions
+     * @return A snapshot of the current cache statistics
+     */
+    public CacheStats getCacheStats() {
+        return cache.getStats();
+    }
+
+    // --- Typed "API" ---
+
+    /**
+     * Set an int value, it is stored without boxing it
+     * @param block  The block the info is attached to
+     * @param key    The key to set
+     * @param value  The value to set
+     */
+    public void setInt(Block block, NamespacedKey key, int value) {
+        getRegion(block).setPrimitive(block.getX(), block.getY(), block.getZ(), key, BlockInfo.TYPE_INT, value, 0);
+    }
+
+    /**
+     * Set an int value, it is stored without boxing it
+     * @param location  The location of the block the info is attached to
+     * @param key       The key to set
+     * @param value     The value to set
+     */
+    public void setInt(Location location, NamespacedKey key, int value) {
+        getRegion(location).setPrimitive(location.getBlockX(), location.getBlockY(), location.getBlockZ(), key, BlockInfo.TYPE_INT, value, 0);
+    }
+
+    /**
+     * Get an int value. Other number types get converted.
+     * @param block  The block to get the info from
+     * @param key    The key to get
+     * @param def    The value to return if the block has no number value for the key
+     * @return The value or the default value
+     */
+    public int getInt(Block block, NamespacedKey key, int def) {
+        return (int) getRegion(block).getLong(block.getX(), block.getY(), block.getZ(), key, def);
+    }
+
+    /**
+     * Get an int value. Other number types get converted.
+     * @param location  The location of the block to get the info from
+     * @param key       The key to get
+     * @param def       The value to return if the block has no number value for the key
+     * @return The value or the default value
+     */
+    public int getInt(Location location, NamespacedKey key, int def) {
+        return (int) getRegion(location).getLong(location.getBlockX(), location.getBlockY(), location.getBlockZ(), key, def);
+    }
+
+    /**
+     * Set a long value, it is stored without boxing it
+     * @param block  The block the info is attached to
+     * @param key    The key to set
+     * @param value  The value to set
+     */
+    public void setLong(Block block, NamespacedKey key, long value) {
+        getRegion(block).setPrimitive(block.getX(), block.getY(), block.getZ(), key, BlockInfo.TYPE_LONG, value, 0);
+    }
+
+    /**
+     * Set a long value, it is stored without boxing it
+     * @param location  The location of the block the info is attached to
+     * @param key       The key to set
+     * @param value     The value to set
+     */
+    public void setLong(Location location, NamespacedKey key, long value) {
+        getRegion(location).setPrimitive(location.getBlockX(), location.getBlockY(), location.getBlockZ(), key, BlockInfo.TYPE_LONG, value, 0);
+    }
+
+    /**
+     * Get a long value. Other number types get converted.
+     * @param block  The block to get the info from
+     * @param key    The key to get
+     * @param def    The value to return if the block has no number value for the key
+     * @return The value or the default value
+     */
+    public long getLong(Block block, NamespacedKey key, long def) {
+        return getRegion(block).getLong(block.getX(), block.getY(), block.getZ(), key, def);
+    }
+
+    /**
+     * Get a long value. Other number types get converted.
+     * @param location  The location of the block to get the info from
+     * @param key       The key to get
+     * @param def       The value to return if the block has no number value for the key
+     * @return The value or the default value
+     */
+    public long getLong(Location location, NamespacedKey key, long def) {
+        return getRegion(location).getLong(location.getBlockX(), location.getBlockY(), location.getBlockZ(), key, def);
+    }
+
+    /**
+     * Set a double value, it is stored without boxing it
+     * @param block  The block the info is attached to
+     * @param key    The key to set
+     * @param value  The value to set
+     */
+    public void setDouble(Block block, NamespacedKey key, double value) {
+        getRegion(block).setPrimitive(block.getX(), block.getY(), block.getZ(), key, BlockInfo.TYPE_DOUBLE, Double.doubleToRawLongBits(value), 0);
+    }
+
+    /**
+     * Set a double value, it is stored without boxing it
+     * @param location  The location of the block the info is attached to
+     * @param key       The key to set
+     * @param value     The value to set
+     */
+    public void setDouble(Location location, NamespacedKey key, double value) {
+        getRegion(location).setPrimitive(location.getBlockX(), location.getBlockY(), location.getBlockZ(), key, BlockInfo.TYPE_DOUBLE, Double.doubleToRawLongBits(value), 0);
+    }
+
+    /**
+     * Get a double value. Other number types get converted.
+     * @param block  The block to get the info from
+     * @param key    The key to get
+     * @param def    The value to return if the block has no number value for the key
+     * @return The value or the default value
+     */
+    public double getDouble(Block block, NamespacedKey key, double def) {
+        return getRegion(block).getDouble(block.getX(), block.getY(), block.getZ(), key, def);
+    }
+
+    /**
+     * Get a double value. Other number types get converted.
+     * @param location  The location of the block to get the info from
+     * @param key       The key to get
+     * @param def       The value to return if the block has no number value for the key
+     * @return The value or the default value
+     */
+    public double getDouble(Location location, NamespacedKey key, double def) {
+        return getRegion(location).getDouble(location.getBlockX(), location.getBlockY(), location.getBlockZ(), key, def);
+    }
+
+    /**
+     * Set a boolean value, it is stored without boxing it
+     * @param block  The block the info is attached to
+     * @param key    The key to set
+     * @param value  The value to set
+     */
+    public void setBoolean(Block block, NamespacedKey key, boolean value) {
+        getRegion(block).setPrimitive(block.getX(), block.getY(), block.getZ(), key, BlockInfo.TYPE_BOOLEAN, value ? 1 : 0, 0);
+    }
+
+    /**
+     * Set a boolean value, it is stored without boxing it
+     * @param location  The location of the block the info is attached to
+     * @param key       The key to set
+     * @param value     The value to set
+     */
+    public void setBoolean(Location location, NamespacedKey key, boolean value) {
+        getRegion(location).setPrimitive(location.getBlockX(), location.getBlockY(), location.getBlockZ(), key, BlockInfo.TYPE_BOOLEAN, value ? 1 : 0, 0);
+    }
+
+    /**
+     * Get a boolean value
+     * @param block  The block to get the info from
+     * @param key    The key to get
+     * @param def    The value to return if the block has no boolean value for the key
+     * @return The value or the default value
+     */
+    public boolean getBoolean(Block block, NamespacedKey key, boolean def) {
+        return getRegion(block).getBoolean(block.getX(), block.getY(), block.getZ(), key, def);
+    }
+
+    /**
+     * Get a boolean value
+     * @param location  The location of the block to get the info from
+     * @param key       The key to get
+     * @param def       The value to return if the block has no boolean value for the key
+     * @return The value or the default value
+     */
+    public boolean getBoolean(Location location, NamespacedKey key, boolean def) {
+        return getRegion(location).getBoolean(location.getBlockX(), location.getBlockY(), location.getBlockZ(), key, def);
+    }
+
+    /**
+     * Set a UUID value, it is stored without boxing it
+     * @param block  The block the info is attached to
+     * @param key    The key to set
+     * @param value  The value to set, null to remove it
+     */
+    public void setUUID(Block block, NamespacedKey key, UUID value) {
+        if (value == null) {
+            getRegion(block).removeInfo(block.getX(), block.getY(), block.getZ(), key);
+        } else {
+            getRegion(block).setPrimitive(block.getX(), block.getY(), block.getZ(), key, BlockInfo.TYPE_UUID, value.getMostSignificantBits(), value.getLeastSignificantBits());
+        }
+    }
+
+    /**
+     * Set a UUID value, it is stored without boxing it
+     * @param location  The location of the block the info is attached to
+     * @param key       The key to set
+     * @param value     The value to set, null to remove it
+     */
+    public void setUUID(Location location, NamespacedKey key, UUID value) {
+        if (value == null) {
+            getRegion(location).removeInfo(location.getBlockX(), location.getBlockY(), location.getBlockZ(), key);
+        } else {
+            getRegion(location).setPrimitive(location.getBlockX(), location.getBlockY(), location.getBlockZ(), key, BlockInfo.TYPE_UUID, value.getMostSignificantBits(), value.getLeastSignificantBits());
+        }
+    }
+
+    /**
+     * Get a UUID value
+     * @param block  The block to get the info from
+     * @param key    The key to get
+     * @return The value or null if the block has no UUID value for the key
+     */
+    public UUID getUUID(Block block, NamespacedKey key) {
+        return getRegion(block).getUUID(block.getX(), block.getY(), block.getZ(), key);
+    }
+
+    /**
+     * Get a UUID value
+     * @param location  The location of the block to get the info from
+     * @param key       The key to get
+     * @return The value or null if the block has no UUID value for the key
+     */
+    public UUID getUUID(Location location, NamespacedKey key) {
+        return getRegion(location).getUUID(location.getBlockX(), location.getBlockY(), location.getBlockZ(), key);
+    }
+
+    /**
+     * Set a binary value, it is stored as-is
+     * @param block  The block the info is attached to
+     * @param key    The key to set
+     * @param value  The value to set, it gets copied. null to remove it
+     */
+    public void setBytes(Block block, NamespacedKey key, byte[] value) {
+        getRegion(block).setInfo(block.getX(), block.getY(), block.getZ(), key, value != null ? value.clone() : null);
+    }
+
+    /**
+     * Set a binary value, it is stored as-is
+     * @param location  The location of the block the info is attached to
+     * @param key       The key to set
+     * @param value     The value to set, it gets copied. null to remove it
+     */
+    public void setBytes(Location location, NamespacedKey key, byte[] value) {
+        getRegion(location).setInfo(location.getBlockX(), location.getBlockY(), location.getBlockZ(), key, value != null ? value.clone() : null);
+    }
+
+    /**
+     * Get a binary value
+     * @param block  The block to get the info from
+     * @param key    The key to get
+     * @return A copy of the value or null if the block has no binary value for the key
+     */
+    public byte[] getBytes(Block block, NamespacedKey key) {
+        Object value = getRegion(block).getInfoValue(block.getX(), block.getY(), block.getZ(), key);
+        return value instanceof byte[] ? ((byte[]) value).clone() : null;
+    }
+
+    /**
+     * Get a binary value
+     * @param location  The location of the block to get the info from
+     * @param key       The key to get
+     * @return A copy of the value or null if the block has no binary value for the key
+     */
+    public byte[] getBytes(Location location, NamespacedKey key) {
+        Object value = getRegion(location).getInfoValue(location.getBlockX(), location.getBlockY(), location.getBlockZ(), key);
+        return value instanceof byte[] ? ((byte[]) value).clone() : null;
+    }
+
+    /**
+     * Get a value of a certain type. This is only for reading, the value must not be modified!
+     * @param block  The block to get the info from
+     * @param key    The key to get
+     * @param type   The type of the value
+     * @param <T>    The type of the value
+     * @return The value or null if the block has no value of that type for the key
+     */
+    public <T> T getBlockInfoValue(Block block, NamespacedKey key, Class<T> type) {
+        Object value = getRegion(block).getInfoValue(block.getX(), block.getY(), block.getZ(), key);
+        return type.isInstance(value) ? type.cast(value) : null;
+    }
+
+    /**
+     * Get a value of a certain type. This is only for reading, the value must not be modified!
+     * @param location  The location of the block to get the info from
+     * @param key       The key to get
+     * @param type      The type of the value
+     * @param <T>       The type of the value
+     * @return The value or null if the block has no value of that type for the key
+     */
+    public <T> T getBlockInfoValue(Location location, NamespacedKey key, Class<T> type) {
+        Object value = getRegion(location).getInfoValue(location.getBlockX(), location.getBlockY(), location.getBlockZ(), key);
+        return type.isInstance(value) ? type.cast(value) : null;
+    }
+
+    /**
+     * Register a codec which stores values of a plugin-defined type in the binary format
+     * instead of serializing them with Bukkit's YAML serialization. Values which were
+     * read before their codec got registered get decoded when they are accessed.
+     * @param id      The id to store the values with, must never change
+     * @param type    The type of the values
+     * @param codec   The codec
+     * @param <T>     The type of the values
+     * @throws IllegalArgumentException When the id is already used for a different type
+     */
+    public <T> void registerCodec(NamespacedKey id, Class<T> type, BlockInfoCodec<T> codec) {
+        CodecRegistry.register(id.toString(), type, codec);
+    }
+
+    // --- Bulk "API" ---
+
+    /**
+     * Get all blocks in a chunk that have info stored on them
+     * @param chunk The chunk
+     * @return A stream of copies of the blocks' info
+     */
+    public Stream<TaggedBlock> getTaggedBlocks(Chunk chunk) {
+        return getTaggedBlocks(chunk, null);
+    }
+
+    /**
+     * Get all blocks in a chunk that have a certain key stored on them
+     * @param chunk The chunk
+     * @param key   The key the blocks need to have, null to get all tagged blocks
+     * @return A stream of copies of the blocks' info
+     */
+    public Stream<TaggedBlock> getTaggedBlocks(Chunk chunk, NamespacedKey key) {
+        int x = chunk.getX() << 4;
+        int z = chunk.getZ() << 4;
+        return getTaggedBlocks(chunk.getWorld(), x, Integer.MIN_VALUE, z, x + 15, Integer.MAX_VALUE, z + 15, key);
+    }
+
+    /**
+     * Get all blocks in a cuboid that have info stored on them
+     * @param corner1   One corner of the cuboid
+     * @param corner2   The opposite corner of the cuboid, needs to be in the same world
+     * @return A stream of copies of the blocks' info
+     */
+    public Stream<TaggedBlock> getTaggedBlocks(Location corner1, Location corner2) {
+        return getTaggedBlocks(corner1, corner2, null);
+    }
+
+    /**
+     * Get all blocks in a cuboid that have a certain key stored on them
+     * @param corner1   One corner of the cuboid
+     * @param corner2   The opposite corner of the cuboid, needs to be in the same world
+     * @param key       The key the blocks need to have, null to get all tagged blocks
+     * @return A stream of copies of the blocks' info
+     */
+    public Stream<TaggedBlock> getTaggedBlocks(Location corner1, Location corner2, NamespacedKey key) {
+        checkSameWorld(corner1, corner2);
+        return getTaggedBlocks(corner1.getWorld(),
+                Math.min(corner1.getBlockX(), corner2.getBlockX()),
+                Math.min(corner1.getBlockY(), corner2.getBlockY()),
+                Math.min(corner1.getBlockZ(), corner2.getBlockZ()),
+                Math.max(corner1.getBlockX(), corner2.getBlockX()),
+                Math.max(corner1.getBlockY(), corner2.getBlockY()),
+                Math.max(corner1.getBlockZ(), corner2.getBlockZ()),
+                key);
+    }
+
+    /**
+     * Get all blocks in a cuboid that have a certain key stored on them.
+     * This only looks at the blocks which have info stored, not at every block in the cuboid.
+     * @param world The world
+     * @param minX  The minimum X coordinate, inclusive
+     * @param minY  The minimum Y coordinate, inclusive
+     * @param minZ  The minimum Z coordinate, inclusive
+     * @param maxX  The maximum X coordinate, inclusive
+     * @param maxY  The maximum Y coordinate, inclusive
+     * @param maxZ  The maximum Z coordinate, inclusive
+     * @param key   The key the blocks need to have, null to get all tagged blocks
+     * @return A stream of copies of the blocks' info
+     */
+    public Stream<TaggedBlock> getTaggedBlocks(World world, int minX, int minY, int minZ, int maxX, int maxY, int maxZ, NamespacedKey key) {
+        int keyId = key != null ? KeyRegistry.lookup(key) : -1;
+        if (key != null && keyId < 0) {
+            return Stream.empty();
+        }
+        List<TaggedBlock> blocks = new ArrayList<>();
+        for (int regionX = minX >> 9; regionX <= maxX >> 9; regionX++) {
+            for (int regionZ = minZ >> 9; regionZ <= maxZ >> 9; regionZ++) {
+                getRegion(getRegionLocation(world, regionX, regionZ)).forEachBlock(minX, minY, minZ, maxX, maxY, maxZ, (x, y, z, info) -> {
+                    if (keyId < 0 || info.get(keyId) != null) {
+                        blocks.add(new TaggedBlock(world, x, y, z, toMap(info)));
+                    }
+                });
+            }
+        }
+        return blocks.stream();
+    }
+
+    /**
+     * Remove all block info in a cuboid
+     * @param corner1   One corner of the cuboid
+     * @param corner2   The opposite corner of the cuboid, needs to be in the same world
+     * @return The amount of blocks which had info removed
+     */
+    public int removeBlockInfo(Location corner1, Location corner2) {
+        return removeBlockInfo(corner1, corner2, null);
+    }
+
+    /**
+     * Remove block info with a certain key in a cuboid
+     * @param corner1   One corner of the cuboid
+     * @param corner2   The opposite corner of the cuboid, needs to be in the same world
+     * @param key       The key to remove, null to remove all info
+     * @return The amount of blocks which had info removed
+     */
+    public int removeBlockInfo(Location corner1, Location corner2, NamespacedKey key) {
+        checkSameWorld(corner1, corner2);
+        return removeBlockInfo(corner1.getWorld(),
+                Math.min(corner1.getBlockX(), corner2.getBlockX()),
+                Math.min(corner1.getBlockY(), corner2.getBlockY()),
+                Math.min(corner1.getBlockZ(), corner2.getBlockZ()),
+                Math.max(corner1.getBlockX(), corner2.getBlockX()),
+                Math.max(corner1.getBlockY(), corner2.getBlockY()),
+                Math.max(corner1.getBlockZ(), corner2.getBlockZ()),
+                key);
+    }
+
+    /**
+     * Remove block info with a certain key in a cuboid
+     * @param world The world
+     * @param minX  The minimum X coordinate, inclusive
+     * @param minY  The minimum Y coordinate, inclusive
+     * @param minZ  The minimum Z coordinate, inclusive
+     * @param maxX  The maximum X coordinate, inclusive
+     * @param maxY  The maximum Y coordinate, inclusive
+     * @param maxZ  The maximum Z coordinate, inclusive
+     * @param key   The key to remove, null to remove all info
+     * @return The amount of blocks which had info removed
+     */
+    public int removeBlockInfo(World world, int minX, int minY, int minZ, int maxX, int maxY, int maxZ, NamespacedKey key) {
+        int removed = 0;
+        for (int regionX = minX >> 9; regionX <= maxX >> 9; regionX++) {
+            for (int regionZ = minZ >> 9; regionZ <= maxZ >> 9; regionZ++) {
+                removed += getRegion(getRegionLocation(world, regionX, regionZ)).removeInfo(minX, minY, minZ, maxX, maxY, maxZ, key);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Move the info of blocks by one block into a direction like a piston moves them.
+     * All affected regions are locked at once so that the info is never visible twice or not at all.
+     * The info of blocks that aren't moved and get moved into is replaced.
+     * @param blocks    The blocks to move, they need to be in the same world
+     * @param direction The direction to move them in
+     */
+    public void moveBlockInfo(List<Block> blocks, BlockFace direction) {
+        if (blocks.isEmpty()) {
+            return;
+        }
+        World world = blocks.get(0).getWorld();
+        int dx = direction.getModX();
+        int dy = direction.getModY();
+        int dz = direction.getModZ();
+        int[] positions = new int[blocks.size() * 3];
+        Region[] from = new Region[blocks.size()];
+        Region[] to = new Region[blocks.size()];
+        List<Region> regions = new ArrayList<>(4);
+        for (int i = 0; i < blocks.size(); i++) {
+            Block block = blocks.get(i);
+            if (!world.equals(block.getWorld())) {
+                throw new IllegalArgumentException("All blocks need to be in the same world!");
+            }
+            positions[i * 3] = block.getX();
+            positions[i * 3 + 1] = block.getY();
+            positions[i * 3 + 2] = block.getZ();
+            from[i] = getRegion(getRegionLocation(world, block.getX() >> 9, block.getZ() >> 9));
+            to[i] = getRegion(getRegionLocation(world, (block.getX() + dx) >> 9, (block.getZ() + dz) >> 9));
+            if (!regions.contains(from[i])) {
+                regions.add(from[i]);
+            }
+            if (!regions.contains(to[i])) {
+                regions.add(to[i]);
+            }
+        }
+        // Always lock in the same order so that concurrent moves can't deadlock
+        regions.sort(Comparator.comparingInt((Region r) -> r.getLocation().getX()).thenComparingInt(r -> r.getLocation().getZ()));
+        withLocks(regions, 0, () -> {
+            BlockInfo[] infos = new BlockInfo[from.length];
+            for (int i = 0; i < from.length; i++) {
+                infos[i] = from[i].takeInfo(positions[i * 3], positions[i * 3 + 1], positions[i * 3 + 2]);
+            }
+            for (int i = 0; i < to.length; i++) {
+                if (infos[i] != null) {
+                    to[i].putInfo(positions[i * 3] + dx, positions[i * 3 + 1] + dy, positions[i * 3 + 2] + dz, infos[i]);
+                }
+            }
+        });
+    }
+
+    /**
+     * Create a batch which collects modifications and applies them at once. Modifications of
+     * many blocks, e.g. when pasting a structure, are a lot cheaper with a batch as every region
+     * only gets looked up and locked once. Other threads see either none or all of the modifications.
+     * @return A new, empty batch
+     */
+    public BlockInfoBatch createBatch() {
+        return new BlockInfoBatch(this);
+    }
+
+    /**
+     * Apply the modifications of a batch while holding the locks of all affected regions
+     * @param operations    The modifications grouped by region
+     */
+    void commit(Map<Region.Location, BlockInfoBatch.Operations> operations) {
+        List<Region> regions = new ArrayList<>(operations.size());
+        for (Region.Location location : operations.keySet()) {
+            regions.add(getRegion(location));
+        }
+        // Always lock in the same order so that concurrent batches and moves can't deadlock
+        regions.sort(Comparator.comparingInt((Region r) -> r.getLocation().getX()).thenComparingInt(r -> r.getLocation().getZ())
+                .thenComparing(r -> r.getLocation().getWorldId()));
+        withLocks(regions, 0, () -> {
+            for (Region region : regions) {
+                operations.get(region.getLocation()).apply(region);
+            }
+        });
+    }
+
+    /**
+     * Get the locations of all blocks in a world that have a certain key stored on them.
+     * This uses the world's key index and doesn't need to load any region data. If the index
+     * is still getting rebuilt after an unclean shutdown then this waits for it to finish,
+     * use {@link #getBlockInfoLocationsAsync(World, NamespacedKey)} to not block.
+     * Blocks whose info expired are not included even if their region wasn't loaded since.
+     * @param world The world
+     * @param key   The key the blocks need to have
+     * @return A list of the blocks' locations
+     */
+    public List<Location> getBlockInfoLocations(World world, NamespacedKey key) {
+        int keyId = KeyRegistry.lookup(key);
+        if (keyId < 0) {
+            return Collections.emptyList();
+        }
+        return toLocations(world, getKeyIndex(world.getUID()).get(keyId));
+    }
+
+    private static List<Location> toLocations(World world, long[] positions) {
+        List<Location> locations = new ArrayList<>(positions.length);
+        for (long position : positions) {
+            locations.add(new Location(world, KeyIndex.unpackX(position), KeyIndex.unpackY(position), KeyIndex.unpackZ(position)));
+        }
+        return locations;
+    }
+
+    // --- Subscription API ---
+
+    /**
+     * Get notified about modifications of a key on all blocks. This includes removals by other plugins,
+     * by the block events and by expiry. Modifications get collected and delivered once per tick on the
+     * main thread, modifications of keys which nobody subscribed to don't have any overhead.
+     * @param plugin    The plugin which subscribes, its subscriptions get cancelled when it gets disabled
+     * @param key       The key
+     * @param listener  The listener to notify
+     * @return The subscription which can be used to cancel it
+     */
+    public BlockInfoSubscription subscribe(Plugin plugin, NamespacedKey key, BlockInfoListener listener) {
+        return subscribe(new BlockInfoSubscription(subscriptions, plugin, key, null, -1, 0, 0, listener));
+    }
+
+    /**
+     * Get notified about modifications of a key on the blocks of a chunk.
+     * See {@link #subscribe(Plugin, NamespacedKey, BlockInfoListener)}.
+     * @param plugin    The plugin which subscribes, its subscriptions get cancelled when it gets disabled
+     * @param key       The key
+     * @param chunk     The chunk, it doesn't need to stay loaded
+     * @param listener  The listener to notify
+     * @return The subscription which can be used to cancel it
+     */
+    public BlockInfoSubscription subscribe(Plugin plugin, NamespacedKey key, Chunk chunk, BlockInfoListener listener) {
+        return subscribe(new BlockInfoSubscription(subscriptions, plugin, key, chunk.getWorld().getUID(),
+                BlockInfoSubscription.CHUNK, chunk.getX(), chunk.getZ(), listener));
+    }
+
+    /**
+     * Get notified about modifications of a key on the blocks of the 512x512 block region that contains a location.
+     * See {@link #subscribe(Plugin, NamespacedKey, BlockInfoListener)}.
+     * @param plugin    The plugin which subscribes, its subscriptions get cancelled when it gets disabled
+     * @param key       The key
+     * @param location  A location inside of the region
+     * @param listener  The listener to notify
+     * @return The subscription which can be used to cancel it
+     */
+    public BlockInfoSubscription subscribeRegion(Plugin plugin, NamespacedKey key, Location location, BlockInfoListener listener) {
+        return subscribeRegion(plugin, key, location.getWorld(), location.getBlockX() >> 9, location.getBlockZ() >> 9, listener);
+    }
+
+    /**
+     * Get notified about modifications of a key on the blocks of a 512x512 block region.
+     * See {@link #subscribe(Plugin, NamespacedKey, BlockInfoListener)}.
+     * @param plugin    The plugin which subscribes, its subscriptions get cancelled when it gets disabled
+     * @param key       The key
+     * @param world     The world of the region
+     * @param regionX   The X coordinate of the region, the block X coordinate shifted right by 9
+     * @param regionZ   The Z coordinate of the region, the block Z coordinate shifted right by 9
+     * @param listener  The listener to notify
+     * @return The subscription which can be used to cancel it
+     */
+    public BlockInfoSubscription subscribeRegion(Plugin plugin, NamespacedKey key, World world, int regionX, int regionZ, BlockInfoListener listener) {
+        return subscribe(new BlockInfoSubscription(subscriptions, plugin, key, world.getUID(),
+                BlockInfoSubscription.REGION, regionX, regionZ, listener));
+    }
+
+    private BlockInfoSubscription subscribe(BlockInfoSubscription subscription) {
+        if (!subscription.getPlugin().isEnabled()) {
+            throw new IllegalStateException(subscription.getPlugin().getName() + " is not enabled!");
+        }
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    // --- Asynchronous "API" ---
+
+    /**
+     * Get the locations of all blocks in a world that have a certain key stored on them
+     * without blocking the calling thread if the world's key index is still getting rebuilt.
+     * @param world The world
+     * @param key   The key the blocks need to have
+     * @return A future with a list of the blocks' locations, possibly completed on the thread rebuilding the index
+     */
+    public CompletableFuture<List<Location>> getBlockInfoLocationsAsync(World world, NamespacedKey key) {
+        KeyIndex index = getKeyIndex(world.getUID());
+        return index.whenBuilt().thenApply(v -> {
+            int keyId = KeyRegistry.lookup(key);
+            return keyId < 0 ? Collections.emptyList() : toLocations(world, index.get(keyId));
+        });
+    }
+
+    /**
+     * Set block info without blocking the calling thread if the region of the block isn't loaded yet.
+     * @param location  The location of the block to attach the info to
+     * @param key       The key to set
+     * @param value     The value to set
+     * @return A future that completes once the info was set, possibly on an I/O thread
+     */
+    public CompletableFuture<Void> setBlockInfoAsync(Location location, NamespacedKey key, Object value) {
+        return withRegionAsync(location.getWorld(), location.getBlockX(), location.getBlockZ(), region -> {
+            region.setInfo(location.getBlockX(), location.getBlockY(), location.getBlockZ(), key, value);
+            return null;
+        });
+    }
+
+    /**
+     * Set block info without blocking the calling thread if the region of the block isn't loaded yet.
+     * @param block The block to attach the info to
+     * @param key   The key to set
+     * @param value The value to set
+     * @return A future that completes once the info was set, possibly on an I/O thread
+     */
+    public CompletableFuture<Void> setBlockInfoAsync(Block block, NamespacedKey key, Object value) {
+        return withRegionAsync(block.getWorld(), block.getX(), block.getZ(), region -> {
+            region.setInfo(block.getX(), block.getY(), block.getZ(), key, value);
+            return null;
+        });
+    }
+
+    /**
+     * Get information from a block without blocking the calling thread if the region of the block isn't loaded yet.
+     * This is only for reading, use {@link #setBlockInfoAsync(Location, NamespacedKey, Object)} for writing!
+     * @param location  The location of the block to get the info from
+     * @param plugin    The plugin for the info
+     * @return A future with all the info that the plugin assigned to the block or null if none was found,
+     *          possibly completed on an I/O thread
+     */
+    public CompletableFuture<ConfigurationSection> getBlockInfoAsync(Location location, Plugin plugin) {
+        return getBlockInfoAsync(location, plugin.getName());
+    }
+
+    /**
+     * Get information from a block without blocking the calling thread if the region of the block isn't loaded yet.
+     * This is only for reading, use {@link #setBlockInfoAsync(Location, NamespacedKey, Object)} for writing!
+     * @param location  The location of the block to get the info from
+     * @param type      The type of info to get
+     * @return A future with all the info of that type that is assigned to the block or null if none was found,
+     *          possibly completed on an I/O thread
+     */
+    public CompletableFuture<ConfigurationSection> getBlockInfoAsync(Location location, String type) {
+        String namespace = type.toLowerCase(Locale.ENGLISH);
+        return withRegionAsync(location.getWorld(), location.getBlockX(), location.getBlockZ(),
+                region -> region.getInfo(location.getBlockX(), location.getBlockY(), location.getBlockZ(), namespace));
+    }
+
+    /**
+     * Get information from a block without blocking the calling thread if the region of the block isn't loaded yet.
+     * This is only for reading, use {@link #setBlockInfoAsync(Location, NamespacedKey, Object)} for writing!
+     * @param location  The location of the block to get the info from
+     * @param key       The namespaced key for the info to get
+     * @return A future with the info value assigned to the block or null if none was found,
+     *          possibly completed on an I/O thread
+     */
+    public CompletableFuture<Object> getBlockInfoValueAsync(Location location, NamespacedKey key) {
+        return withRegionAsync(location.getWorld(), location.getBlockX(), location.getBlockZ(),
+                region -> region.getInfoValue(location.getBlockX(), location.getBlockY(), location.getBlockZ(), key));
+    }
+
+    /**
+     * Get information from a block without blocking the calling thread if the region of the block isn't loaded yet.
+     * This is only for reading, use {@link #setBlockInfoAsync(Block, NamespacedKey, Object)} for writing!
+     * @param block The block to get the info from
+     * @param key   The namespaced key for the info to get
+     * @return A future with the info value assigned to the block or null if none was found,
+     *          possibly completed on an I/O thread
+     */
+    public CompletableFuture<Object> getBlockInfoValueAsync(Block block, NamespacedKey key) {
+        return withRegionAsync(block.getWorld(), block.getX(), block.getZ(),
+                region -> region.getInfoValue(block.getX(), block.getY(), block.getZ(), key));
+    }
+
     // --- Events ---
 
     /**
@@ -238,45 +1144,76 @@ public class BlockInfoStorage extends JavaPlugin implements Listener {
      */
     @EventHandler(priority = EventPriority.MONITOR)
     private void onChunkLoad(ChunkLoadEvent event) {
-        Region.Location location = getRegionLocation(event.getChunk());
-        synchronized (location) {
-            if (!dataMap.containsKey(location)) {
-                Region region = getOrCreateRegion(location);
-                getServer().getScheduler().runTaskAsynchronously(this, () -> {
-                    synchronized (location) {
-                        load(location, region).notifyLoad(event.getChunk().getX(), event.getChunk().getZ());
-                    }
+        loadChunk(event.getChunk());
+    }
+
+    /**
+     * Mark a chunk as loaded and read its block info on an I/O thread
+     * @param chunk The chunk
+     */
+    private void loadChunk(Chunk chunk) {
+        Region.Location location = getRegionLocation(chunk);
+        int chunkX = chunk.getX();
+        int chunkZ = chunk.getZ();
+        cache.chunkLoaded(location, chunkX, chunkZ);
+        long start = System.nanoTime();
+        Region region = cache.peek(location);
+        if (region != null) {
+            if (region.needsChunkLoad(chunkX, chunkZ)) {
+                ioExecutor.execute(() -> {
+                    region.loadChunk(chunkX, chunkZ);
+                    Metrics.ASYNC_LOAD_TIME.recordSince(start);
                 });
             }
+        } else {
+            loadAsync(location).thenAcceptAsync(r -> {
+                r.loadChunk(chunkX, chunkZ);
+                Metrics.ASYNC_LOAD_TIME.recordSince(start);
+            }, ioExecutor);
         }
     }
 
     /**
-     * Remove cached chunk data
+     * Allow cached chunk data to be evicted
      */
     @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
     private void onChunkUnload(ChunkUnloadEvent event) {
-        Region.Location regionLocation = getRegionLocation(event.getChunk());
-        synchronized (regionLocation) {
-            Region region = dataMap.get(regionLocation);
-            if (region != null) {
-                region.notifyUnload(event.getChunk().getX(), event.getChunk().getZ());
-                if (region.isUnloaded()) {
-                    dataMap.remove(regionLocation);
-                    save(region);
-                }
-            }
-        }
+        cache.chunkUnloaded(getRegionLocation(event.getChunk()), event.getChunk().getX(), event.getChunk().getZ());
     }
 
     /**
-     * Save chunk data to disk to ensure being in-sync with the world
+     * Cancel the subscriptions of a plugin so that its listeners don't get called anymore
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    private void onPluginDisable(PluginDisableEvent event) {
+        subscriptions.cancel(event.getPlugin());
+    }
+
+    /**
+     * Load the key index of a world
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    private void onWorldLoad(WorldLoadEvent event) {
+        getKeyIndex(event.getWorld().getUID());
+        getJournal(event.getWorld().getUID());
+    }
+
+    /**
+     * Save chunk data to disk to ensure being in-sync with the world. With the journal
+     * only the journaled modifications get written, the regions get written on compaction.
      */
     @EventHandler(priority = EventPriority.MONITOR)
     private void onWorldSave(WorldSaveEvent event) {
-        Map<Integer, Map<Integer, Region.Location>> regions = regionLocs.get(event.getWorld().getUID());
-        if (regions != null) {
-            regions.values().stream().flatMap(m -> m.values().stream()).map(dataMap::get).filter(Objects::nonNull).forEach(this::save);
+        UUID worldId = event.getWorld().getUID();
+        Journal journal = journals.get(worldId);
+        if (journal != null) {
+            ioExecutor.execute(() -> flushJournal(journal));
+        } else {
+            for (Region region : cache.getRegions()) {
+                if (region.getLocation().getWorldId().equals(worldId)) {
+                    save(region);
+                }
+            }
         }
     }
 
@@ -285,10 +1222,16 @@ public class BlockInfoStorage extends JavaPlugin implements Listener {
      */
     @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
     private void onWorldUnload(WorldUnloadEvent event) {
-        Map<Integer, Map<Integer, Region.Location>> regions = regionLocs.get(event.getWorld().getUID());
-        if (regions != null) {
-            regions.values().stream().flatMap(m -> m.values().stream()).map(dataMap::remove).filter(Objects::nonNull).forEach(this::save);
-            regionLocs.remove(event.getWorld().getUID());
+        cache.unloadWorld(event.getWorld().getUID());
+        regionLocs.removeWorld(event.getWorld().getUID());
+        Journal journal = journals.remove(event.getWorld().getUID());
+        if (journal != null) {
+            // Regions which weren't written yet replay the records when the world gets loaded again
+            ioExecutor.execute(() -> flushJournal(journal));
+        }
+        KeyIndex index = keyIndexes.remove(event.getWorld().getUID());
+        if (index != null) {
+            writer.save(index);
         }
     }
 
@@ -296,49 +1239,224 @@ public class BlockInfoStorage extends JavaPlugin implements Listener {
 
     @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
     private void on(BlockBreakEvent event) {
-        removeBlockInfo(event.getBlock());
+        clearBlockInfo(event.getBlock());
     }
 
     @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
     private void on(BlockPlaceEvent event) {
-        removeBlockInfo(event.getBlock());
+        clearBlockInfo(event.getBlock());
     }
 
     @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
     private void on(BlockBurnEvent event) {
-        removeBlockInfo(event.getBlock());
+        clearBlockInfo(event.getBlock());
     }
 
     @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
     private void on(BlockFadeEvent event) {
-        removeBlockInfo(event.getBlock());
+        clearBlockInfo(event.getBlock());
     }
 
     @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
     private void on(BlockFromToEvent event) {
-        removeBlockInfo(event.getBlock());
+        clearBlockInfo(event.getBlock());
     }
 
     @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
     private void on(BlockPistonExtendEvent event) {
-        event.getBlocks().forEach(this::removeBlockInfo);
-        // TODO: Block info moving?
+        movePistonBlocks(event.getBlocks(), event.getDirection());
     }
 
     @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
     private void on(BlockPistonRetractEvent event) {
-        event.getBlocks().forEach(this::removeBlockInfo);
-        // TODO: Block info moving?
+        movePistonBlocks(event.getBlocks(), event.getDirection());
     }
 
     // --- Internal utility methods ---
 
+    private static void checkSameWorld(Location corner1, Location corner2) {
+        if (!Objects.equals(corner1.getWorld(), corner2.getWorld())) {
+            throw new IllegalArgumentException("Both corners need to be in the same world!");
+        }
+    }
+
+    /**
+     * Remove all info of a block which got changed in the world. Blocks in columns without
+     * any info return right away without locking or loading anything if their region is cached.
+     */
+    private void clearBlockInfo(Block block) {
+        int x = block.getX();
+        int z = block.getZ();
+        Region region = cache.peek(getRegionLocation(block.getWorld(), x >> 9, z >> 9));
+        if (region != null && !region.mayHaveInfo(x, z)) {
+            return;
+        }
+        removeBlockInfo(block);
+    }
+
+    /**
+     * Move the info of blocks moved by a piston. The event's list also contains the blocks which
+     * get destroyed by the piston, their info gets removed instead.
+     */
+    private void movePistonBlocks(List<Block> blocks, BlockFace direction) {
+        if (!mayHaveInfo(blocks)) {
+            return;
+        }
+        List<Block> moved = new ArrayList<>(blocks.size());
+        for (Block block : blocks) {
+            if (block.getPistonMoveReaction() == PistonMoveReaction.BREAK) {
+                clearBlockInfo(block);
+            } else {
+                moved.add(block);
+            }
+        }
+        moveBlockInfo(moved, direction);
+    }
+
+    private boolean mayHaveInfo(List<Block> blocks) {
+        for (Block block : blocks) {
+            Region region = cache.peek(getRegionLocation(block.getWorld(), block.getX() >> 9, block.getZ() >> 9));
+            if (region == null || region.mayHaveInfo(block.getX(), block.getZ())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove the block info which expired since the last sweep from the cached regions, one
+     * region at a time. Regions which aren't cached drop their expired info once it gets read.
+     */
+    private void expireBlockInfo() {
+        List<ExpiryWheel.Entry> due = expiries.advance(System.currentTimeMillis());
+        if (due.isEmpty()) {
+            return;
+        }
+        Map<Region.Location, List<ExpiryWheel.Entry>> byRegion = new HashMap<>();
+        for (ExpiryWheel.Entry entry : due) {
+            byRegion.computeIfAbsent(entry.getLocation(), l -> new ArrayList<>()).add(entry);
+        }
+        byRegion.forEach((location, entries) -> {
+            Region region = cache.peek(location);
+            if (region != null) {
+                region.expire(entries);
+            }
+        });
+    }
+
+    private static void withLocks(List<Region> regions, int index, Runnable action) {
+        if (index == regions.size()) {
+            action.run();
+            return;
+        }
+        synchronized (regions.get(index)) {
+            withLocks(regions, index + 1, action);
+        }
+    }
+
+    private static Map<NamespacedKey, Object> toMap(BlockInfo info) {
+        Map<NamespacedKey, Object> values = new LinkedHashMap<>();
+        for (int i = 0; i < info.size(); i++) {
+            values.put(KeyRegistry.key(info.keyAt(i)), info.valueAt(i));
+        }
+        return Collections.unmodifiableMap(values);
+    }
+
     private Region getOrCreateRegion(Region.Location location) {
-        Region region = dataMap.get(location);
+        Region region = cache.peek(location);
         if (region != null) {
             return region;
         }
-        return new Region(location);
+        region = writer.getUnsaved(location);
+        if (region != null) {
+            region.restore();
+            return region;
+        }
+        return new Region(location, getKeyIndex(location.getWorldId()), getJournal(location.getWorldId()), backend, expiries, subscriptions);
+    }
+
+    private StorageBackend createBackend() {
+        Set<String> memoryMappedWorlds = new HashSet<>(getConfig().getStringList("memory-mapped-worlds"));
+        FileStorageBackend files = new FileStorageBackend(this::getFolder, worldId -> {
+            World world = getServer().getWorld(worldId);
+            return world != null && memoryMappedWorlds.contains(world.getName());
+        }, Math.max(0, Math.min(9, getConfig().getInt("storage.compression-level"))), getLogger());
+        String type = getConfig().getString("storage.type", "file");
+        if ("sqlite".equalsIgnoreCase(type)) {
+            try {
+                return new SqliteStorageBackend(this::getFolder, files);
+            } catch (IllegalStateException e) {
+                getLogger().log(Level.SEVERE, "Unable to use the SQLite storage, falling back to region files", e);
+            }
+        } else if (!"file".equalsIgnoreCase(type)) {
+            getLogger().log(Level.WARNING, "Unknown storage type " + type + ", using region files");
+        }
+        return files;
+    }
+
+    /**
+     * Get the folder which stores the block info of a world
+     * @param worldId   The ID of the world
+     * @return The block info folder in the world's folder
+     */
+    private File getFolder(UUID worldId) {
+        World world = getServer().getWorld(worldId);
+        if (world == null) {
+            throw new IllegalStateException("Could not find world with ID " + worldId + "?");
+        }
+        return new File(world.getWorldFolder(), "blockinfo");
+    }
+
+    private KeyIndex getKeyIndex(UUID worldId) {
+        return keyIndexes.computeIfAbsent(worldId, id -> KeyIndex.load(getFolder(id), id, backend, getJournal(id), indexExecutor, getLogger()));
+    }
+
+    private Journal getJournal(UUID worldId) {
+        if (!journalEnabled) {
+            return null;
+        }
+        return journals.computeIfAbsent(worldId, id -> Journal.load(getFolder(id), getLogger()));
+    }
+
+    private void flushJournals() {
+        journals.values().forEach(this::flushJournal);
+    }
+
+    private void flushJournal(Journal journal) {
+        try {
+            journal.flush();
+        } catch (IOException e) {
+            getLogger().log(Level.SEVERE, "Error while trying to write block info journal", e);
+        }
+    }
+
+    /**
+     * Queue writing all regions of a world which have journaled modifications so that the journal can be dropped
+     * @param worldId   The ID of the world
+     */
+    private void compactJournal(UUID worldId) {
+        Journal journal = journals.get(worldId);
+        if (journal == null) {
+            return;
+        }
+        writer.compact(journal, worldId, () -> {
+            List<Region> regions = new ArrayList<>();
+            for (Region region : cache.getRegions()) {
+                if (region.getLocation().getWorldId().equals(worldId)) {
+                    regions.add(region);
+                }
+            }
+            List<CompletableFuture<Region>> loads = new ArrayList<>();
+            for (long region : journal.getUnreplayedRegions()) {
+                Region.Location location = regionLocs.get(worldId, (int) (region >> 32), (int) region);
+                // Falls back to loading it on this thread when the I/O threads are already shut down
+                loads.add(loadAsync(location).exceptionally(e -> getRegion(location)));
+            }
+            for (CompletableFuture<Region> load : loads) {
+                regions.add(load.join());
+            }
+            return regions;
+        });
     }
 
     private Region load(Region.Location location) {
@@ -346,41 +1464,119 @@ public class BlockInfoStorage extends JavaPlugin implements Listener {
     }
 
     private Region load(Region.Location location, Region region) {
-        // load data from file
-        region.load();
+        if (!region.isLoaded()) {
+            // load data from file
+            try {
+                region.load();
+            } catch (IOException e) {
+                getLogger().log(Level.SEVERE, "Error while trying to load block info for region " + region.getLocation(), e);
+            }
+        }
 
-        dataMap.put(location, region);
+        cache.put(location, region);
         return region;
     }
 
     private void save(Region region) {
+        writer.save(region);
+    }
+
+    /**
+     * Load a region on the I/O executor. Concurrent calls for the same region share the same load.
+     * @param location  The location of the region
+     * @return A future which completes with the loaded region
+     */
+    private CompletableFuture<Region> loadAsync(Region.Location location) {
+        Region region = cache.get(location);
+        if (region != null) {
+            return CompletableFuture.completedFuture(region);
+        }
+        CompletableFuture<Region> future = new CompletableFuture<>();
+        CompletableFuture<Region> existing = loading.putIfAbsent(location, future);
+        if (existing != null) {
+            return existing;
+        }
         try {
-            region.save();
-        } catch (IOException e) {
-            getLogger().log(Level.SEVERE, "Error while trying to save block info for region " + region.getLocation(), e);
+            ioExecutor.execute(() -> {
+                try {
+                    synchronized (location) {
+                        future.complete(load(location));
+                    }
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    loading.remove(location, future);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            loading.remove(location, future);
+            future.completeExceptionally(e);
         }
+        return future;
     }
 
-    private Region getRegion(Block block) {
-        Region.Location location = getRegionLocation(block);
-        synchronized (location) {
-            return load(location);
+    /**
+     * Apply a function to the region of a block once it and the block's chunk are loaded.
+     * The function is applied directly if no disk access is necessary.
+     */
+    private <T> CompletableFuture<T> withRegionAsync(World world, int x, int z, Function<Region, T> function) {
+        Region.Location location = getRegionLocation(world, x >> 9, z >> 9);
+        Region region = cache.peek(location);
+        if (region != null && !region.needsChunkLoad(x >> 4, z >> 4)) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            try {
+                future.complete(function.apply(region));
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+            return future;
         }
+        return loadAsync(location).thenApplyAsync(r -> {
+            r.loadChunk(x >> 4, z >> 4);
+            return function.apply(r);
+        }, ioExecutor);
     }
 
-    private Region getRegion(Location loc) {
-        Region.Location location = getRegionLocation(loc);
-        synchronized (location) {
-            return load(location);
+    private Region getRegion(Region.Location location) {
+        Region region = cache.get(location);
+        if (region != null) {
+            return region;
+        }
+        long start = System.nanoTime();
+        try {
+            CompletableFuture<Region> future = loading.get(location);
+            if (future != null) {
+                boolean waiting = !future.isDone();
+                region = future.join();
+                if (waiting) {
+                    Metrics.LOCK_WAIT_TIME.recordSince(start);
+                }
+                return region;
+            }
+            synchronized (location) {
+                // Only loads lock the location so if it is cached now then this thread waited for another one to load it
+                region = cache.peek(location);
+                if (region != null) {
+                    Metrics.LOCK_WAIT_TIME.recordSince(start);
+                    return region;
+                }
+                return load(location);
+            }
+        } finally {
+            Metrics.BLOCKING_LOAD_TIME.recordSince(start);
         }
     }
 
-    private Region.Location getRegionLocation(World world, int x, int z) {
-        synchronized (regionLocs) {
-            return regionLocs.computeIfAbsent(world.getUID(), k -> new HashMap<>())
-                    .computeIfAbsent(x, k -> new HashMap<>())
-                    .computeIfAbsent(z, k -> new Region.Location(world.getUID(), x, z));
-        }
+    private Region getRegion(Block block) {
+        return getRegion(getRegionLocation(block));
+    }
+
+    private Region getRegion(Location loc) {
+        return getRegion(getRegionLocation(loc));
+    }
+
+    Region.Location getRegionLocation(World world, int x, int z) {
+        return regionLocs.get(world.getUID(), x, z);
     }
 
     private Region.Location getRegionLocation(Chunk chunk) {
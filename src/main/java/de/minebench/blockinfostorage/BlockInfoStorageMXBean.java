@@ -0,0 +1,68 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The metrics of the storage that are exposed through JMX as
+ * <code>de.minebench.blockinfostorage:type=BlockInfoStorage</code>. Durations are measured in nanoseconds.
+ */
+public interface BlockInfoStorageMXBean {
+
+    CacheStats getCacheStats();
+
+    HistogramStats getRegionLoadTime();
+
+    HistogramStats getRegionLoadBytes();
+
+    HistogramStats getChunkReadTime();
+
+    HistogramStats getChunkReadBytes();
+
+    HistogramStats getChunkReadEntries();
+
+    HistogramStats getRegionSaveTime();
+
+    HistogramStats getRegionSaveBytes();
+
+    HistogramStats getRegionSaveEntries();
+
+    HistogramStats getLockWaitTime();
+
+    HistogramStats getBlockingLoadTime();
+
+    HistogramStats getAsyncLoadTime();
+
+    /**
+     * Get the amount of regions which are currently being loaded asynchronously
+     * @return The amount of pending loads
+     */
+    int getPendingLoads();
+
+    /**
+     * Get the amount of tasks which are queued or running on the I/O threads
+     * @return The amount of pending I/O tasks
+     */
+    int getPendingIoTasks();
+
+    /**
+     * Get the amount of regions which are waiting to be written
+     * @return The amount of pending writes
+     */
+    int getPendingWrites();
+}
@@ -0,0 +1,135 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.bukkit.NamespacedKey;
+import org.bukkit.plugin.Plugin;
+
+import java.util.UUID;
+
+/**
+ * A registered {@link BlockInfoListener} which can be cancelled again. Subscriptions
+ * get cancelled automatically when the plugin which registered them gets disabled.
+ */
+public class BlockInfoSubscription {
+
+    /**
+     * The shift of the block coordinates of the scope when subscribing to a whole chunk
+     */
+    static final int CHUNK = 4;
+    /**
+     * The shift of the block coordinates of the scope when subscribing to a whole region
+     */
+    static final int REGION = 9;
+
+    private final Subscriptions subscriptions;
+    private final Plugin plugin;
+    private final NamespacedKey key;
+    private final int keyId;
+    private final UUID worldId;
+    private final int shift;
+    private final int x;
+    private final int z;
+    private final BlockInfoListener listener;
+    private volatile boolean cancelled = false;
+
+    /**
+     * Create a new subscription
+     * @param subscriptions The subscriptions it belongs to
+     * @param plugin        The plugin which subscribed
+     * @param key           The key to get notified about
+     * @param worldId       The world of the chunk or region, null if it isn't scoped
+     * @param shift         The shift to apply to block coordinates to get the scope's coordinates,
+     *                      {@link #CHUNK}, {@link #REGION} or -1 if it isn't scoped
+     * @param x             The X coordinate of the chunk or region
+     * @param z             The Z coordinate of the chunk or region
+     * @param listener      The listener to notify
+     */
+    BlockInfoSubscription(Subscriptions subscriptions, Plugin plugin, NamespacedKey key, UUID worldId, int shift, int x, int z, BlockInfoListener listener) {
+        this.subscriptions = subscriptions;
+        this.plugin = plugin;
+        this.key = key;
+        this.keyId = KeyRegistry.id(key);
+        this.worldId = worldId;
+        this.shift = shift;
+        this.x = x;
+        this.z = z;
+        this.listener = listener;
+    }
+
+    /**
+     * Stop notifying the listener. Modifications which were already collected don't get delivered anymore.
+     */
+    public void cancel() {
+        if (!cancelled) {
+            cancelled = true;
+            subscriptions.remove(this);
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public Plugin getPlugin() {
+        return plugin;
+    }
+
+    public NamespacedKey getKey() {
+        return key;
+    }
+
+    BlockInfoListener getListener() {
+        return listener;
+    }
+
+    int getKeyId() {
+        return keyId;
+    }
+
+    int getShift() {
+        return shift;
+    }
+
+    /**
+     * Get the coordinates of the scope packed into a single long
+     * @return The packed X and Z coordinates of the chunk or region
+     */
+    long getScope() {
+        return Subscriptions.packScope(x, z);
+    }
+
+    /**
+     * Check whether or not a block is inside of the scope of this subscription
+     * @param worldId   The ID of the block's world
+     * @param x         The X coordinate of the block
+     * @param z         The Z coordinate of the block
+     * @return true if the listener should be notified about modifications of the block
+     */
+    boolean matches(UUID worldId, int x, int z) {
+        return shift < 0 || x >> shift == this.x && z >> shift == this.z && this.worldId.equals(worldId);
+    }
+
+    @Override
+    public String toString() {
+        return "BlockInfoSubscription{plugin=" + plugin.getName() + ", key=" + key
+                + (shift < 0 ? "" : ", worldId=" + worldId + ", " + (shift == CHUNK ? "chunk" : "region") + "=" + x + "," + z)
+                + ", cancelled=" + cancelled + "}";
+    }
+}
@@ -0,0 +1,494 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+
+/**
+ * A command line tool which works directly on the region files in a world's blockinfo folder
+ * without a running server. The server must not use the folder while the tool modifies it.
+ * The files get processed in parallel. Binary region files only need this plugin's jar,
+ * legacy YAML files need the Bukkit API (e.g. the server jar) on the class path and values
+ * of server types like items can only be converted when the server classes are available.
+ */
+public final class BlockInfoTool {
+
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: java -cp BlockInfoStorage.jar[:server.jar] " + BlockInfoTool.class.getName() + " <command> <blockinfo folder> [--threads <count>] [--compression <level>]",
+            "Commands:",
+            "  stats             Print the amount of blocks, entries, keys and the size of every region",
+            "  validate          Check that all region files can be read completely",
+            "  compact           Rewrite the region files without unused data and expired entries",
+            "  convert <format>  Convert the region files to the binary or yaml format",
+            "Options:",
+            "  --threads         The amount of files to process in parallel, defaults to the amount of processors",
+            "  --compression     The Deflate level (0-9) of written binary files, defaults to 6");
+
+    private static int compressionLevel = 6;
+
+    private BlockInfoTool() {}
+
+    public static void main(String[] args) {
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        int threads = Math.max(1, getOption(arguments, "--threads", Runtime.getRuntime().availableProcessors()));
+        compressionLevel = getOption(arguments, "--compression", compressionLevel);
+        if (compressionLevel < 0 || compressionLevel > 9) {
+            exit("Invalid compression level " + compressionLevel + ", it needs to be between 0 and 9");
+        }
+        if (arguments.size() < 2) {
+            exit(USAGE);
+        }
+
+        String command = arguments.get(0).toLowerCase(Locale.ROOT);
+        FileTask task;
+        File folder;
+        switch (command) {
+            case "stats":
+                task = BlockInfoTool::stats;
+                break;
+            case "validate":
+                task = BlockInfoTool::validate;
+                break;
+            case "compact":
+                task = BlockInfoTool::compact;
+                break;
+            case "convert":
+                if (arguments.size() < 3) {
+                    exit(USAGE);
+                }
+                String format = arguments.remove(1).toLowerCase(Locale.ROOT);
+                if ("binary".equals(format)) {
+                    task = BlockInfoTool::convertToBinary;
+                } else if ("yaml".equals(format)) {
+                    task = BlockInfoTool::convertToYaml;
+                } else {
+                    exit("Unknown format " + format + ", it needs to be binary or yaml");
+                    return;
+                }
+                break;
+            default:
+                exit(USAGE);
+                return;
+        }
+        folder = new File(arguments.get(1));
+        File[] files = folder.listFiles((dir, name) -> FileStorageBackend.REGION_FILE.matcher(name).matches());
+        if (files == null) {
+            exit(folder + " is not a folder!");
+            return;
+        }
+        Arrays.sort(files, Comparator.comparing(File::getName));
+        System.exit(run(files, task, threads) ? 0 : 1);
+    }
+
+    /**
+     * Remove an option with a number value from the arguments
+     * @param arguments The arguments
+     * @param option    The name of the option
+     * @param def       The value to use when the option isn't set
+     * @return The value of the option
+     */
+    private static int getOption(List<String> arguments, String option, int def) {
+        int index = arguments.indexOf(option);
+        if (index < 0) {
+            return def;
+        }
+        if (index + 1 >= arguments.size()) {
+            exit(USAGE);
+        }
+        String value = arguments.get(index + 1);
+        arguments.subList(index, index + 2).clear();
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            exit("Invalid number " + value + " for " + option);
+            return def;
+        }
+    }
+
+    private static void exit(String message) {
+        System.err.println(message);
+        System.exit(2);
+    }
+
+    /**
+     * Run a task for every file in parallel and print the results in the order of the files
+     * @param files     The files
+     * @param task      The task
+     * @param threads   The amount of files to process at the same time
+     * @return Whether or not the task succeeded for all files
+     */
+    private static boolean run(File[] files, FileTask task, int threads) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Result>> futures = new ArrayList<>(files.length);
+        for (File file : files) {
+            futures.add(executor.submit(() -> {
+                try {
+                    return task.run(file);
+                } catch (IOException | RuntimeException e) {
+                    return new Result(false, file.getName() + ": " + e.getMessage());
+                } catch (NoClassDefFoundError e) {
+                    return new Result(false, file.getName() + ": Requires the Bukkit API on the class path (" + e.getMessage() + ")");
+                }
+            }));
+        }
+        executor.shutdown();
+        Result total = new Result(true, null);
+        for (Future<Result> future : futures) {
+            try {
+                Result result = future.get();
+                System.out.println(result.message);
+                total.add(result);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                System.out.println(e.getCause());
+                total.success = false;
+            }
+        }
+        if (total.blocks > 0 || total.bytes > 0) {
+            System.out.println("Total: " + files.length + " files, " + total.blocks + " blocks, " + total.entries + " entries, " + total.bytes + " bytes");
+        }
+        return total.success;
+    }
+
+    // --- Commands ---
+
+    private static Result stats(File file) throws IOException {
+        Result result = new Result(true, null);
+        Map<String, Integer> keys = new HashMap<>();
+        long[] lastBlock = {Long.MIN_VALUE};
+        RegionFile.EntryConsumer consumer = (x, y, z, namespace, key, value) -> {
+            long block = KeyIndex.pack(x, y, z);
+            if (block != lastBlock[0]) {
+                lastBlock[0] = block;
+                result.blocks++;
+            }
+            result.entries++;
+            keys.merge(namespace + ":" + key, 1, Integer::sum);
+        };
+        if (isBinary(file)) {
+            readRaw(file, consumer);
+        } else {
+            RegionFile.readLegacy(file, consumer);
+        }
+        result.bytes = file.length();
+        StringBuilder message = new StringBuilder(file.getName()).append(": ")
+                .append(result.blocks).append(" blocks, ").append(result.entries).append(" entries, ")
+                .append(keys.size()).append(" keys, ").append(result.bytes).append(" bytes");
+        keys.entrySet().stream()
+                .sorted(Map.Entry.<String, Integer>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+                .forEach(e -> message.append(System.lineSeparator()).append("  ").append(e.getKey()).append(": ").append(e.getValue()));
+        result.message = message.toString();
+        return result;
+    }
+
+    private static Result validate(File file) throws IOException {
+        if (!isBinary(file)) {
+            Yaml.validate(file);
+            if (getOther(file).exists()) {
+                return new Result(true, file.getName() + ": valid, but ignored as there is a binary file for the region");
+            }
+            return new Result(true, file.getName() + ": valid");
+        }
+        RegionFile.Header header = RegionFile.readHeader(file);
+        long length = file.length();
+        List<Integer> chunks = new ArrayList<>();
+        for (int chunk = 0; chunk < RegionFile.CHUNKS; chunk++) {
+            if (header.hasChunk(chunk)) {
+                if (header.getOffset(chunk) < RegionFile.HEADER_SIZE || (long) header.getOffset(chunk) + header.getLength(chunk) > length) {
+                    return new Result(false, file.getName() + ": chunk " + chunk + " is outside of the file");
+                }
+                chunks.add(chunk);
+            }
+        }
+        chunks.sort(Comparator.comparingInt(header::getOffset));
+        for (int i = 1; i < chunks.size(); i++) {
+            if (header.getOffset(chunks.get(i - 1)) + header.getLength(chunks.get(i - 1)) > header.getOffset(chunks.get(i))) {
+                return new Result(false, file.getName() + ": chunks " + chunks.get(i - 1) + " and " + chunks.get(i) + " overlap");
+            }
+        }
+        Set<Long> blocks = new HashSet<>();
+        long[] lastBlock = {Long.MIN_VALUE};
+        readRaw(file, (x, y, z, namespace, key, value) -> {
+            long block = KeyIndex.pack(x, y, z);
+            if (block != lastBlock[0]) {
+                lastBlock[0] = block;
+                if (!blocks.add(block)) {
+                    throw new IOException("block " + x + "," + y + "," + z + " is stored twice");
+                }
+            }
+        });
+        return new Result(true, file.getName() + ": valid");
+    }
+
+    private static Result compact(File file) throws IOException {
+        long before = file.length();
+        if (isBinary(file)) {
+            RegionFile.Writer writer = new RegionFile.Writer(compressionLevel);
+            BlockBuffer block = new BlockBuffer(writer);
+            long now = System.currentTimeMillis();
+            readRaw(file, (x, y, z, namespace, key, value) -> {
+                long expiry = RegionFile.getExpiry((byte[]) value);
+                if (expiry == 0 || expiry > now) {
+                    block.add(x, y, z, namespace, key, value);
+                }
+            });
+            block.flush();
+            write(writer, file);
+        } else {
+            Yaml.compact(file);
+        }
+        return new Result(true, file.getName() + ": " + before + " -> " + file.length() + " bytes");
+    }
+
+    private static Result convertToBinary(File file) throws IOException {
+        if (isBinary(file)) {
+            return new Result(true, file.getName() + ": already binary");
+        }
+        File target = getOther(file);
+        if (target.exists()) {
+            return new Result(false, file.getName() + ": " + target.getName() + " already exists and takes precedence, delete this file instead");
+        }
+        RegionFile.Writer writer = new RegionFile.Writer(compressionLevel);
+        for (Map.Entry<Long, Map<String, Object>> block : readLegacy(file).entrySet()) {
+            long position = block.getKey();
+            writer.block(KeyIndex.unpackX(position), KeyIndex.unpackY(position), KeyIndex.unpackZ(position), block.getValue().size());
+            for (Map.Entry<String, Object> entry : block.getValue().entrySet()) {
+                int separator = entry.getKey().indexOf('.');
+                writer.entry(entry.getKey().substring(0, separator), entry.getKey().substring(separator + 1), entry.getValue());
+            }
+        }
+        write(writer, target);
+        Files.delete(file.toPath());
+        return new Result(true, file.getName() + ": converted to " + target.getName());
+    }
+
+    private static Result convertToYaml(File file) throws IOException {
+        if (!isBinary(file)) {
+            return new Result(true, file.getName() + ": already yaml");
+        }
+        Matcher matcher = FileStorageBackend.REGION_FILE.matcher(file.getName());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException(file + " is no region file");
+        }
+        File target = getOther(file);
+        Yaml.convert(file, Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)), target);
+        Files.delete(file.toPath());
+        return new Result(true, file.getName() + ": converted to " + target.getName());
+    }
+
+    // --- Utilities ---
+
+    private static boolean isBinary(File file) {
+        return file.getName().endsWith(".bis");
+    }
+
+    /**
+     * Get the file of the same region in the other format
+     */
+    private static File getOther(File file) {
+        String name = file.getName();
+        return new File(file.getParentFile(), name.substring(0, name.length() - 3) + (isBinary(file) ? "yml" : "bis"));
+    }
+
+    private static void readRaw(File file, RegionFile.EntryConsumer consumer) throws IOException {
+        Matcher matcher = FileStorageBackend.REGION_FILE.matcher(file.getName());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException(file + " is no region file");
+        }
+        int regionX = Integer.parseInt(matcher.group(1));
+        int regionZ = Integer.parseInt(matcher.group(2));
+        RegionFile.Header header = RegionFile.readHeader(file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            for (int chunk = 0; chunk < RegionFile.CHUNKS; chunk++) {
+                if (header.hasChunk(chunk)) {
+                    RegionFile.readRawEntries(RegionFile.readRawChunk(raf, header, chunk), header, chunk, regionX, regionZ, consumer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a legacy YAML region file grouped by block
+     * @return The entries by their path relative to the block, grouped by the packed position of their block
+     */
+    private static Map<Long, Map<String, Object>> readLegacy(File file) throws IOException {
+        Map<Long, Map<String, Object>> blocks = new LinkedHashMap<>();
+        RegionFile.readLegacy(file, (x, y, z, namespace, key, value) ->
+                blocks.computeIfAbsent(KeyIndex.pack(x, y, z), p -> new LinkedHashMap<>()).put(namespace + "." + key, value));
+        return blocks;
+    }
+
+    private static void write(RegionFile.Writer writer, File file) throws IOException {
+        if (writer.isEmpty()) {
+            Files.deleteIfExists(file.toPath());
+            return;
+        }
+        File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        writer.write(tempFile);
+        replace(tempFile, file);
+    }
+
+    private static void replace(File tempFile, File file) throws IOException {
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private interface FileTask {
+        Result run(File file) throws IOException;
+    }
+
+    /**
+     * Everything that needs the Bukkit API. It is kept in its own class so that
+     * the binary format can be handled without Bukkit on the class path.
+     */
+    private static class Yaml {
+
+        private static void validate(File file) throws IOException {
+            try {
+                new YamlConfiguration().load(file);
+            } catch (InvalidConfigurationException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+            RegionFile.readLegacy(file, (x, y, z, namespace, key, value) -> {});
+        }
+
+        private static void compact(File file) throws IOException {
+            YamlConfiguration config = new YamlConfiguration();
+            readLegacy(file).forEach((position, entries) -> entries.forEach((path, value) -> config.set(
+                    KeyIndex.unpackX(position) + "." + KeyIndex.unpackY(position) + "." + KeyIndex.unpackZ(position) + "." + path, value)));
+            save(config, file);
+        }
+
+        private static void convert(File file, int regionX, int regionZ, File target) throws IOException {
+            YamlConfiguration config = new YamlConfiguration();
+            long now = System.currentTimeMillis();
+            RegionFile.read(file, regionX, regionZ, (x, y, z, namespace, key, value) -> {
+                if (value instanceof ExpiringValue) {
+                    if (((ExpiringValue) value).getExpiresAt() <= now) {
+                        return;
+                    }
+                    throw new IOException("value of " + namespace + ":" + key + " at " + x + "," + y + "," + z
+                            + " expires which can't be stored as yaml");
+                }
+                if (value instanceof EncodedValue) {
+                    throw new IOException("value of " + namespace + ":" + key + " at " + x + "," + y + "," + z
+                            + " uses codec " + ((EncodedValue) value).getCodecId() + " which can't be stored as yaml");
+                }
+                config.set(x + "." + y + "." + z + "." + namespace + "." + key, value);
+            });
+            save(config, target);
+        }
+
+        private static void save(YamlConfiguration config, File file) throws IOException {
+            File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+            config.save(tempFile);
+            replace(tempFile, file);
+        }
+    }
+
+    /**
+     * Collects the raw entries of one block as the writer needs to know their amount up front
+     */
+    private static class BlockBuffer {
+        private final RegionFile.Writer writer;
+        private final List<String> namespaces = new ArrayList<>();
+        private final List<String> keys = new ArrayList<>();
+        private final List<byte[]> values = new ArrayList<>();
+        private int x;
+        private int y;
+        private int z;
+
+        private BlockBuffer(RegionFile.Writer writer) {
+            this.writer = writer;
+        }
+
+        private void add(int x, int y, int z, String namespace, String key, Object value) throws IOException {
+            if (!values.isEmpty() && (x != this.x || y != this.y || z != this.z)) {
+                flush();
+            }
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            namespaces.add(namespace);
+            keys.add(key);
+            values.add((byte[]) value);
+        }
+
+        private void flush() throws IOException {
+            if (values.isEmpty()) {
+                return;
+            }
+            writer.block(x, y, z, values.size());
+            for (int i = 0; i < values.size(); i++) {
+                writer.rawEntry(namespaces.get(i), keys.get(i), values.get(i));
+            }
+            namespaces.clear();
+            keys.clear();
+            values.clear();
+        }
+    }
+
+    private static class Result {
+        private boolean success;
+        private String message;
+        private long blocks = 0;
+        private long entries = 0;
+        private long bytes = 0;
+
+        private Result(boolean success, String message) {
+            this.success = success;
+            this.message = message;
+        }
+
+        private void add(Result result) {
+            success &= result.success;
+            blocks += result.blocks;
+            entries += result.entries;
+            bytes += result.bytes;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A snapshot of the region cache's counters
+ */
+public class CacheStats {
+
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final int regions;
+    private final long estimatedMemory;
+    private final long memoryBudget;
+
+    CacheStats(long hits, long misses, long evictions, int regions, long estimatedMemory, long memoryBudget) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.regions = regions;
+        this.estimatedMemory = estimatedMemory;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Get the amount of region lookups that were answered from the cache
+     * @return The amount of cache hits
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Get the amount of region lookups that required loading the region
+     * @return The amount of cache misses
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Get the amount of regions that were evicted to stay within the memory budget
+     * @return The amount of evictions
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Get the amount of currently cached regions
+     * @return The amount of cached regions
+     */
+    public int getRegions() {
+        return regions;
+    }
+
+    /**
+     * Get the estimated memory that the cached regions use
+     * @return The estimated memory in bytes
+     */
+    public long getEstimatedMemory() {
+        return estimatedMemory;
+    }
+
+    /**
+     * Get the memory budget of the cache
+     * @return The memory budget in bytes
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + ", regions=" + regions
+                + ", estimatedMemory=" + estimatedMemory + ", memoryBudget=" + memoryBudget + "}";
+    }
+}
@@ -0,0 +1,195 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The block data of a single chunk in a {@link Region}, keyed by the packed block position.
+ * The section keeps its region's column mask up to date: a bit for each of its 16x16 block
+ * columns which is set while at least one block in that column has info.
+ */
+class ChunkSection {
+
+    private final LongObjectHashMap<BlockInfo> blocks = new LongObjectHashMap<>();
+    private final char[] columnCounts = new char[256];
+    private final AtomicLongArray columns;
+    private final int columnsOffset;
+    private final boolean trackBlocks;
+    private boolean dirty = false;
+    private LongObjectHashMap<Boolean> dirtyBlocks = null;
+
+    /**
+     * Create a new section
+     * @param columns       The column mask of the region, 256 bits per chunk
+     * @param chunk         The index of the section's chunk in the region
+     * @param trackBlocks   Whether or not to keep track of which blocks were modified
+     */
+    ChunkSection(AtomicLongArray columns, int chunk, boolean trackBlocks) {
+        this.columns = columns;
+        this.columnsOffset = chunk * 4;
+        this.trackBlocks = trackBlocks;
+    }
+
+    private static int column(long position) {
+        return (int) (position >> 9 & 15) << 4 | (int) (position & 15);
+    }
+
+    private void added(long position) {
+        int column = column(position);
+        if (columnCounts[column]++ == 0) {
+            int index = columnsOffset + (column >> 6);
+            columns.set(index, columns.get(index) | 1L << column);
+        }
+    }
+
+    private void removed(long position) {
+        int column = column(position);
+        if (--columnCounts[column] == 0) {
+            int index = columnsOffset + (column >> 6);
+            columns.set(index, columns.get(index) & ~(1L << column));
+        }
+    }
+
+    /**
+     * Set the column mask to exactly the columns of this section. Has to be called after
+     * filling a section whose columns were marked as unknown.
+     */
+    void publishColumns() {
+        for (int i = 0; i < 4; i++) {
+            long mask = 0;
+            for (int bit = 0; bit < 64; bit++) {
+                if (columnCounts[i << 6 | bit] != 0) {
+                    mask |= 1L << bit;
+                }
+            }
+            columns.set(columnsOffset + i, mask);
+        }
+    }
+
+    BlockInfo get(long position) {
+        return blocks.get(position);
+    }
+
+    /**
+     * Get the info of a block, creating it if the block has none yet
+     * @param position  The packed position of the block
+     * @return The block's info
+     */
+    BlockInfo getOrCreate(long position) {
+        BlockInfo info = blocks.get(position);
+        if (info == null) {
+            info = new BlockInfo();
+            blocks.put(position, info);
+            added(position);
+        }
+        return info;
+    }
+
+    BlockInfo put(long position, BlockInfo info) {
+        BlockInfo previous = blocks.put(position, info);
+        if (previous == null) {
+            added(position);
+        }
+        return previous;
+    }
+
+    BlockInfo remove(long position) {
+        BlockInfo info = blocks.remove(position);
+        if (info != null) {
+            removed(position);
+        }
+        return info;
+    }
+
+    int size() {
+        return blocks.size();
+    }
+
+    boolean isEmpty() {
+        return blocks.isEmpty();
+    }
+
+    void forEach(LongObjectHashMap.EntryConsumer<BlockInfo> consumer) {
+        blocks.forEach(consumer);
+    }
+
+    /**
+     * Get a rough estimate of the memory that this section uses. Blocks are assumed
+     * to hold about two entries, values aren't inspected.
+     * @return The estimated memory in bytes
+     */
+    long estimateMemory() {
+        long memory = 576 + blocks.capacity() * 12L + blocks.size() * 160L;
+        if (dirtyBlocks != null) {
+            memory += 48 + dirtyBlocks.capacity() * 12L;
+        }
+        return memory;
+    }
+
+    /**
+     * Check whether or not this section was modified since it was last written
+     * @return true if it was modified
+     */
+    boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Mark a block of this section as modified
+     * @param position  The packed position of the block
+     */
+    void setDirty(long position) {
+        dirty = true;
+        if (trackBlocks) {
+            if (dirtyBlocks == null) {
+                dirtyBlocks = new LongObjectHashMap<>();
+            }
+            dirtyBlocks.put(position, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Get the positions of the blocks which were modified since this section was last written.
+     * Only available if the section keeps track of them.
+     * @return The packed positions of the modified blocks
+     */
+    long[] getDirtyBlocks() {
+        if (!trackBlocks) {
+            throw new IllegalStateException("Modified blocks aren't tracked!");
+        }
+        if (dirtyBlocks == null) {
+            return new long[0];
+        }
+        long[] positions = new long[dirtyBlocks.size()];
+        int[] index = new int[1];
+        dirtyBlocks.forEach((position, dirty) -> positions[index[0]++] = position);
+        return positions;
+    }
+
+    /**
+     * Reset the modification state after the section got written
+     */
+    void clearDirty() {
+        dirty = false;
+        if (dirtyBlocks != null) {
+            dirtyBlocks.clear();
+        }
+    }
+}
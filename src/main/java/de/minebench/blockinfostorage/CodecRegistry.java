@@ -0,0 +1,110 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the {@link BlockInfoCodec}s of plugin-defined value types, identified by a string id
+ * that gets stored next to the serialized values.
+ */
+final class CodecRegistry {
+
+    private static final Map<String, Entry<?>> BY_ID = new ConcurrentHashMap<>();
+    private static final Map<Class<?>, Entry<?>> BY_TYPE = new ConcurrentHashMap<>();
+
+    private CodecRegistry() {}
+
+    /**
+     * Register a codec
+     * @param id    The id to store values with
+     * @param type  The type of the values
+     * @param codec The codec
+     * @param <T>   The type of the values
+     */
+    static synchronized <T> void register(String id, Class<T> type, BlockInfoCodec<T> codec) {
+        Entry<?> existing = BY_ID.get(id);
+        if (existing != null && existing.type != type) {
+            throw new IllegalArgumentException("Codec " + id + " is already registered for " + existing.type.getName() + "!");
+        }
+        Entry<T> entry = new Entry<>(id, type, codec);
+        BY_ID.put(id, entry);
+        BY_TYPE.put(type, entry);
+    }
+
+    /**
+     * Get the codec of a value
+     * @param value The value
+     * @return The codec entry or null if there is no codec for the value's type
+     */
+    static Entry<?> forValue(Object value) {
+        if (BY_TYPE.isEmpty()) {
+            return null;
+        }
+        Entry<?> entry = BY_TYPE.get(value.getClass());
+        if (entry == null) {
+            for (Entry<?> e : BY_TYPE.values()) {
+                if (e.type.isInstance(value)) {
+                    return e;
+                }
+            }
+        }
+        return entry;
+    }
+
+    static Entry<?> forId(String id) {
+        return BY_ID.get(id);
+    }
+
+    static class Entry<T> {
+        private final String id;
+        private final Class<T> type;
+        private final BlockInfoCodec<T> codec;
+
+        private Entry(String id, Class<T> type, BlockInfoCodec<T> codec) {
+            this.id = id;
+            this.type = type;
+            this.codec = codec;
+        }
+
+        String getId() {
+            return id;
+        }
+
+        BlockInfoCodec<T> getCodec() {
+            return codec;
+        }
+
+        /**
+         * Encode a value with this codec
+         * @param value The value, has to be of this entry's type
+         * @return The encoded bytes
+         * @throws IOException When the codec failed
+         */
+        byte[] encode(Object value) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            codec.write(new DataOutputStream(bytes), type.cast(value));
+            return bytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A value of a plugin-defined type whose codec wasn't registered when it was read.
+ * It gets written back unchanged and decoded once the codec is available.
+ */
+final class EncodedValue {
+
+    private static final Logger LOGGER = Logger.getLogger(EncodedValue.class.getName());
+
+    private final String codecId;
+    private final byte[] data;
+
+    EncodedValue(String codecId, byte[] data) {
+        this.codecId = codecId;
+        this.data = data;
+    }
+
+    String getCodecId() {
+        return codecId;
+    }
+
+    byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Decode the value if its codec is registered
+     * @return The decoded value or null if the codec isn't registered or failed to read it
+     */
+    Object decode() {
+        CodecRegistry.Entry<?> entry = CodecRegistry.forId(codecId);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            return entry.getCodec().read(new DataInputStream(new ByteArrayInputStream(data)));
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Unable to decode block info value with codec " + codecId, e);
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "EncodedValue{codec=" + codecId + ", length=" + data.length + "}";
+    }
+}
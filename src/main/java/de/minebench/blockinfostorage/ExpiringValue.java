@@ -0,0 +1,72 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A value which expires at a certain time. It only exists while a value gets passed around,
+ * e.g. when reading or setting it, {@link BlockInfo} stores the expiry next to the plain value.
+ */
+final class ExpiringValue {
+
+    private final long expiresAt;
+    private final Object value;
+
+    ExpiringValue(long expiresAt, Object value) {
+        this.expiresAt = expiresAt;
+        this.value = value;
+    }
+
+    /**
+     * Wrap a value so that it expires after a time to live
+     * @param value The value, null to not wrap anything
+     * @param ttl   The time to live, has to be positive
+     * @param unit  The unit of the time to live
+     * @return The wrapped value or null if the value was null
+     * @throws IllegalArgumentException When the time to live isn't positive
+     */
+    static ExpiringValue of(Object value, long ttl, TimeUnit unit) {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("The time to live needs to be positive!");
+        }
+        if (value == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        return new ExpiringValue(now + Math.min(unit.toMillis(ttl), Long.MAX_VALUE - now), value);
+    }
+
+    /**
+     * Get the time at which the value expires
+     * @return The timestamp in milliseconds
+     */
+    long getExpiresAt() {
+        return expiresAt;
+    }
+
+    Object getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "ExpiringValue{expiresAt=" + expiresAt + ", value=" + value + "}";
+    }
+}
@@ -0,0 +1,158 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hierarchical timer wheel which keeps track of when expiring block info needs to be removed.
+ * Every level has 64 slots, a slot of the lowest level covers a single tick and a slot of a higher
+ * level covers a whole turn of the level below it. Entries get put into the lowest level that
+ * reaches their tick and move down into the level below whenever it starts a new turn, so both
+ * scheduling and advancing only touch a single slot per level instead of keeping all entries sorted.
+ * Entries can't be cancelled, the handler of a due entry needs to check whether the info really expired.
+ */
+class ExpiryWheel {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+
+    private final long tickMillis;
+    @SuppressWarnings("unchecked")
+    private final List<Entry>[][] slots = (List<Entry>[][]) new List<?>[LEVELS][SLOTS];
+    private long currentTick;
+    private int size = 0;
+
+    /**
+     * Create a new wheel
+     * @param tickMillis    The length of a tick in milliseconds, entries are due at the end of the tick they expire in
+     * @param now           The current time in milliseconds
+     */
+    ExpiryWheel(long tickMillis, long now) {
+        this.tickMillis = tickMillis;
+        this.currentTick = now / tickMillis;
+    }
+
+    /**
+     * Schedule the expiry of block info
+     * @param location  The location of the block's region
+     * @param x         The X coordinate of the block
+     * @param y         The Y coordinate of the block
+     * @param z         The Z coordinate of the block
+     * @param expiresAt The time at which the info expires in milliseconds
+     */
+    synchronized void schedule(Region.Location location, int x, int y, int z, long expiresAt) {
+        long tick = expiresAt / tickMillis + (expiresAt % tickMillis != 0 ? 1 : 0);
+        add(new Entry(location, x, y, z, Math.max(tick, currentTick + 1)));
+        size++;
+    }
+
+    private void add(Entry entry) {
+        long delta = Math.max(0, entry.tick - currentTick);
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = SLOT_BITS * level;
+            if (delta < 1L << (shift + SLOT_BITS)) {
+                addToSlot(level, (int) (entry.tick >> shift) & (SLOTS - 1), entry);
+                return;
+            }
+        }
+        // Too far away for the wheel, park it in the top level slot which gets moved down last
+        int shift = SLOT_BITS * (LEVELS - 1);
+        addToSlot(LEVELS - 1, (int) ((currentTick >> shift) - 1) & (SLOTS - 1), entry);
+    }
+
+    private void addToSlot(int level, int slot, Entry entry) {
+        List<Entry> entries = slots[level][slot];
+        if (entries == null) {
+            entries = new ArrayList<>();
+            slots[level][slot] = entries;
+        }
+        entries.add(entry);
+    }
+
+    /**
+     * Advance the wheel to the current time
+     * @param now   The current time in milliseconds
+     * @return The entries which became due since the last time the wheel was advanced
+     */
+    synchronized List<Entry> advance(long now) {
+        List<Entry> due = new ArrayList<>();
+        long target = now / tickMillis;
+        if (size == 0) {
+            currentTick = Math.max(currentTick, target);
+            return due;
+        }
+        while (currentTick < target) {
+            currentTick++;
+            // Move the entries of the higher levels down whenever the level below starts a new turn
+            for (int level = 1; level < LEVELS && (currentTick & (1L << SLOT_BITS * level) - 1) == 0; level++) {
+                int slot = (int) (currentTick >> SLOT_BITS * level) & (SLOTS - 1);
+                List<Entry> entries = slots[level][slot];
+                if (entries != null) {
+                    slots[level][slot] = null;
+                    entries.forEach(this::add);
+                }
+            }
+            int slot = (int) currentTick & (SLOTS - 1);
+            if (slots[0][slot] != null) {
+                due.addAll(slots[0][slot]);
+                slots[0][slot] = null;
+            }
+        }
+        size -= due.size();
+        return due;
+    }
+
+    /**
+     * The scheduled expiry of the info of a block
+     */
+    static class Entry {
+        private final Region.Location location;
+        private final int x;
+        private final int y;
+        private final int z;
+        private final long tick;
+
+        private Entry(Region.Location location, int x, int y, int z, long tick) {
+            this.location = location;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.tick = tick;
+        }
+
+        Region.Location getLocation() {
+            return location;
+        }
+
+        int getX() {
+            return x;
+        }
+
+        int getY() {
+            return y;
+        }
+
+        int getZ() {
+            return z;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.bukkit.NamespacedKey;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stores every region in its own {@link RegionFile} in the block info folder of its world.
+ * Legacy YAML region files get migrated to the binary format when their region is written.
+ */
+class FileStorageBackend implements StorageBackend {
+
+    /** Matches the names of region files, the groups are the region's coordinates and the file extension */
+    static final Pattern REGION_FILE = Pattern.compile("bi\\.(-?\\d+)\\.(-?\\d+)\\.(bis|yml)");
+
+    private final Function<UUID, File> folders;
+    private final Predicate<UUID> memoryMapped;
+    private final int compressionLevel;
+    private final Logger logger;
+
+    /**
+     * Create a new file backend
+     * @param folders           Get the block info folder of a world by its ID
+     * @param memoryMapped      Whether or not the region files of a world should be read
+     *                          in place from a memory mapping, by the world's ID
+     * @param compressionLevel  The Deflate level to compress the chunks of region files with,
+     *                          0 to not compress them. Files of memory mapped worlds never get
+     *                          compressed as their chunks couldn't be read in place anymore.
+     * @param logger            The logger to log problems to
+     */
+    FileStorageBackend(Function<UUID, File> folders, Predicate<UUID> memoryMapped, int compressionLevel, Logger logger) {
+        this.folders = folders;
+        this.memoryMapped = memoryMapped;
+        this.compressionLevel = compressionLevel;
+        this.logger = logger;
+    }
+
+    private File getRegionFile(Region.Location location) {
+        return new File(folders.apply(location.getWorldId()), "bi." + location.getX() + "." + location.getZ() + ".bis");
+    }
+
+    private File getLegacyFile(Region.Location location) {
+        return new File(folders.apply(location.getWorldId()), "bi." + location.getX() + "." + location.getZ() + ".yml");
+    }
+
+    @Override
+    public boolean writesBlocks() {
+        return false;
+    }
+
+    /**
+     * Load the header of a region file. Legacy YAML files get read completely when no binary file exists.
+     */
+    @Override
+    public Stored load(Region.Location location, RegionFile.EntryConsumer migrated) throws IOException {
+        File regionFile = getRegionFile(location);
+        if (regionFile.exists()) {
+            Metrics.REGION_LOAD_BYTES.record(regionFile.length());
+            RegionFile.Header header;
+            try {
+                header = RegionFile.readHeader(regionFile);
+            } catch (IOException e) {
+                // Move the broken file out of the way so that it doesn't get overwritten on the next save
+                File broken = new File(regionFile.getParentFile(), regionFile.getName() + ".broken");
+                Files.move(regionFile.toPath(), broken.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                throw new IOException("Unable to read " + regionFile + ", moved it to " + broken.getName(), e);
+            }
+            return open(location, regionFile, header);
+        }
+        File legacyFile = getLegacyFile(location);
+        if (legacyFile.exists()) {
+            Metrics.REGION_LOAD_BYTES.record(legacyFile.length());
+            RegionFile.readLegacy(legacyFile, migrated);
+        }
+        return null;
+    }
+
+    /**
+     * Open a region file which got read or written. The file gets mapped if the region's world is memory mapped.
+     */
+    private RegionData open(Region.Location location, File regionFile, RegionFile.Header header) {
+        ByteBuffer mapping = null;
+        if (memoryMapped.test(location.getWorldId())) {
+            try {
+                mapping = RegionFile.map(regionFile);
+            } catch (IOException e) {
+                // Fall back to reading the chunks onto the heap
+            }
+        }
+        return new RegionData(location, regionFile, header, mapping);
+    }
+
+    @Override
+    public long readChunk(Region.Location location, Stored stored, int chunk, RegionFile.EntryConsumer consumer) throws IOException {
+        RegionData data = (RegionData) stored;
+        if (data.mapping != null) {
+            RegionFile.readChunk(data.mapping, data.header, chunk, location.getX(), location.getZ(), consumer);
+        } else {
+            try (RandomAccessFile raf = new RandomAccessFile(data.file, "r")) {
+                RegionFile.readChunk(raf, data.header, chunk, location.getX(), location.getZ(), consumer);
+            }
+        }
+        return data.header.getLength(chunk);
+    }
+
+    @Override
+    public void readAll(UUID worldId, RegionFile.EntryConsumer consumer) throws IOException {
+        File folder = folders.apply(worldId);
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File regionFile : files) {
+            Matcher matcher = REGION_FILE.matcher(regionFile.getName());
+            if (!matcher.matches()) {
+                continue;
+            }
+            try {
+                if ("bis".equals(matcher.group(3))) {
+                    RegionFile.read(regionFile, Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)), consumer);
+                } else if (!new File(folder, "bi." + matcher.group(1) + "." + matcher.group(2) + ".bis").exists()) {
+                    RegionFile.readLegacy(regionFile, consumer);
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                logger.log(Level.SEVERE, "Unable to read " + regionFile, e);
+            }
+        }
+    }
+
+    /**
+     * Write the snapshot into a temporary file. Chunks which weren't modified get copied from
+     * the current file without decoding or recompressing them. The commit replaces the region file with it
+     * so that the file is never left in a partially written state.
+     */
+    @Override
+    public Commit write(Region.Location location, Region.Snapshot snapshot) throws IOException {
+        File regionFile = getRegionFile(location);
+        File legacyFile = getLegacyFile(location);
+        RegionData previous = (RegionData) snapshot.getStored();
+        int level = memoryMapped.test(location.getWorldId()) ? 0 : compressionLevel;
+        RegionFile.Writer writer = new RegionFile.Writer(previous != null ? previous.header : null, level);
+        if (previous != null) {
+            try (RandomAccessFile raf = new RandomAccessFile(previous.file, "r")) {
+                for (int chunk = 0; chunk < RegionFile.CHUNKS; chunk++) {
+                    if (snapshot.isUnchanged(chunk)) {
+                        writer.rawChunk(chunk, RegionFile.readRawChunk(raf, previous.header, chunk));
+                    }
+                }
+            }
+        }
+        for (int chunk = 0; chunk < RegionFile.CHUNKS; chunk++) {
+            snapshot.forEachBlock(chunk, (x, y, z, info) -> {
+                writer.block(x, y, z, info.size());
+                for (int i = 0; i < info.size(); i++) {
+                    NamespacedKey key = KeyRegistry.key(info.keyAt(i));
+                    writer.entry(key.getNamespace(), key.getKey(), info, i);
+                }
+            });
+        }
+
+        if (writer.isEmpty()) {
+            return () -> {
+                Files.deleteIfExists(regionFile.toPath());
+                Files.deleteIfExists(legacyFile.toPath());
+                return null;
+            };
+        }
+        regionFile.getParentFile().mkdirs();
+        File tempFile = new File(regionFile.getParentFile(), regionFile.getName() + ".tmp");
+        RegionFile.Header header = writer.write(tempFile);
+        Metrics.REGION_SAVE_BYTES.record(tempFile.length());
+        return () -> {
+            try {
+                Files.move(tempFile.toPath(), regionFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), regionFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.deleteIfExists(legacyFile.toPath());
+            return open(location, regionFile, header);
+        };
+    }
+
+    /**
+     * Delete the files of a region in both formats
+     * @param location  The location of the region
+     * @throws IOException When a file could not be deleted
+     */
+    void delete(Region.Location location) throws IOException {
+        Files.deleteIfExists(getRegionFile(location).toPath());
+        Files.deleteIfExists(getLegacyFile(location).toPath());
+    }
+
+    @Override
+    public void close() {}
+
+    /**
+     * The header of a region file and its mapping if the file is memory mapped
+     */
+    private static class RegionData implements Stored {
+        private final Region.Location location;
+        private final File file;
+        private final RegionFile.Header header;
+        private final ByteBuffer mapping;
+
+        private RegionData(Region.Location location, File file, RegionFile.Header header, ByteBuffer mapping) {
+            this.location = location;
+            this.file = file;
+            this.header = header;
+            this.mapping = mapping;
+        }
+
+        @Override
+        public boolean hasChunk(int chunk) {
+            return header.hasChunk(chunk);
+        }
+
+        @Override
+        public boolean readsInPlace() {
+            return mapping != null;
+        }
+
+        @Override
+        public boolean readBlock(int x, int y, int z, String namespace, String key, RegionFile.EntryConsumer consumer) throws IOException {
+            if (mapping == null) {
+                throw new UnsupportedOperationException("Region " + location + " isn't memory mapped!");
+            }
+            return RegionFile.readBlock(mapping, header, x, y, z, namespace, key, consumer);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative values. Values are counted in power of two
+ * buckets so percentiles are only accurate to a factor of two, which is enough to spot
+ * outliers while recording stays as cheap as a few atomic additions.
+ */
+final class Histogram {
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+    /**
+     * Record a value
+     * @param value The value, negative values are counted as 0
+     */
+    void record(long value) {
+        value = Math.max(0, value);
+        count.increment();
+        sum.add(value);
+        buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Retry until the maximum is at least the value
+        }
+    }
+
+    /**
+     * Record the time that passed since a start time
+     * @param start The start time from {@link System#nanoTime()}
+     */
+    void recordSince(long start) {
+        record(System.nanoTime() - start);
+    }
+
+    /**
+     * Get a snapshot of the recorded values. Values recorded concurrently might only
+     * be reflected in some of its numbers.
+     * @return The snapshot
+     */
+    HistogramStats snapshot() {
+        long[] counts = new long[buckets.length()];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        long maximum = max.get();
+        return new HistogramStats(count.sum(), sum.sum(), maximum,
+                percentile(counts, total, maximum, 0.5), percentile(counts, total, maximum, 0.9), percentile(counts, total, maximum, 0.99));
+    }
+
+    private static long percentile(long[] counts, long total, long max, double percentile) {
+        long target = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target && seen > 0) {
+                // Upper bound of the bucket
+                return Math.min(max, i == 0 ? 0 : (1L << i) - 1);
+            }
+        }
+        return 0;
+    }
+}
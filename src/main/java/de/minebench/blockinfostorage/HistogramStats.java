@@ -0,0 +1,104 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A snapshot of a histogram of measured values. Durations are measured in nanoseconds.
+ * Percentiles are the upper bound of the power of two range that they fall into.
+ */
+public class HistogramStats {
+
+    private final long count;
+    private final long sum;
+    private final long max;
+    private final long p50;
+    private final long p90;
+    private final long p99;
+
+    HistogramStats(long count, long sum, long max, long p50, long p90, long p99) {
+        this.count = count;
+        this.sum = sum;
+        this.max = max;
+        this.p50 = p50;
+        this.p90 = p90;
+        this.p99 = p99;
+    }
+
+    /**
+     * Get the amount of recorded values
+     * @return The amount of values
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Get the sum of all recorded values
+     * @return The sum
+     */
+    public long getSum() {
+        return sum;
+    }
+
+    /**
+     * Get the average of all recorded values
+     * @return The average or 0 if nothing was recorded
+     */
+    public double getMean() {
+        return count > 0 ? (double) sum / count : 0;
+    }
+
+    /**
+     * Get the largest recorded value
+     * @return The largest value
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Get the median of the recorded values
+     * @return The approximate median
+     */
+    public long getP50() {
+        return p50;
+    }
+
+    /**
+     * Get the 90th percentile of the recorded values
+     * @return The approximate 90th percentile
+     */
+    public long getP90() {
+        return p90;
+    }
+
+    /**
+     * Get the 99th percentile of the recorded values
+     * @return The approximate 99th percentile
+     */
+    public long getP99() {
+        return p99;
+    }
+
+    @Override
+    public String toString() {
+        return "HistogramStats{count=" + count + ", sum=" + sum + ", max=" + max
+                + ", p50=" + p50 + ", p90=" + p90 + ", p99=" + p99 + "}";
+    }
+}
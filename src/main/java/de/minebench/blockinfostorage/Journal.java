@@ -0,0 +1,415 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.bukkit.NamespacedKey;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only per-world log of all modifications of the block info. Records are collected
+ * in memory and appended to the disk in batches by {@link #flush()}. The records of regions
+ * which weren't saved yet get replayed when the region is loaded again, a compaction writes
+ * all regions with journaled changes and then drops the journaled records.
+ */
+class Journal {
+
+    private static final int MAGIC = 0x4249534A; // "BISJ"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    static final byte SET = 1;
+    static final byte REMOVE_KEY = 2;
+    static final byte REMOVE_ALL = 3;
+    static final byte REMOVE_NAMESPACE = 4;
+
+    private final File file;
+    private final File compactingFile;
+    private final Object fileLock = new Object();
+
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private final CRC32 crc = new CRC32();
+
+    private final LongObjectHashMap<ByteArrayOutputStream> unreplayed = new LongObjectHashMap<>();
+
+    private Journal(File folder) {
+        this.file = new File(folder, "journal.bij");
+        this.compactingFile = new File(folder, "journal.bij.old");
+    }
+
+    /**
+     * Load the journal of a world's block info folder. The records of all regions are kept
+     * in memory until the region gets loaded and they are replayed.
+     * @param folder    The folder with the region files
+     * @param logger    The logger to log problems to
+     * @return The loaded journal
+     */
+    static Journal load(File folder, Logger logger) {
+        Journal journal = new Journal(folder);
+        // A journal which is still being compacted contains the older records
+        for (File file : new File[]{journal.compactingFile, journal.file}) {
+            if (file.exists()) {
+                try {
+                    journal.read(file, logger);
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Unable to read block info journal " + file, e);
+                }
+            }
+        }
+        return journal;
+    }
+
+    private void read(File file, Logger logger) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() < HEADER_SIZE || raf.readInt() != MAGIC) {
+                throw new IOException(file + " is not a block info journal!");
+            }
+            int version = raf.readInt();
+            if (version != VERSION) {
+                throw new IOException(file + " has unsupported version " + version + "!");
+            }
+            long valid = HEADER_SIZE;
+            while (valid < raf.length()) {
+                byte[] payload;
+                try {
+                    int length = raf.readInt();
+                    int checksum = raf.readInt();
+                    if (length <= 0 || length > raf.length() - raf.getFilePointer()) {
+                        break;
+                    }
+                    payload = new byte[length];
+                    raf.readFully(payload);
+                    crc.reset();
+                    crc.update(payload, 0, length);
+                    if ((int) crc.getValue() != checksum) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+                int x = RegionFile.readSignedVarInt(in);
+                RegionFile.readSignedVarInt(in);
+                int z = RegionFile.readSignedVarInt(in);
+                long region = pack(x >> 9, z >> 9);
+                ByteArrayOutputStream records = unreplayed.get(region);
+                if (records == null) {
+                    records = new ByteArrayOutputStream();
+                    unreplayed.put(region, records);
+                }
+                records.write(payload);
+                valid = raf.getFilePointer();
+            }
+            if (valid < raf.length()) {
+                // The last batch was only written partially, the following appends have to start at a valid record
+                logger.log(Level.WARNING, "Dropping " + (raf.length() - valid) + " bytes of incomplete records at the end of " + file);
+                raf.setLength(valid);
+            }
+        }
+    }
+
+    private static long pack(int regionX, int regionZ) {
+        return (long) regionX << 32 | (regionZ & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Record that a value was set
+     * @param x     The X coordinate of the block
+     * @param y     The Y coordinate of the block
+     * @param z     The Z coordinate of the block
+     * @param key   The key of the value
+     * @param value The value
+     */
+    synchronized void set(int x, int y, int z, NamespacedKey key, Object value) {
+        try {
+            start(x, y, z, SET);
+            RegionFile.writeString(recordOut, key.getNamespace());
+            RegionFile.writeString(recordOut, key.getKey());
+            RegionFile.writeValue(recordOut, value);
+            finish();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Record that a value was set, primitive values get written without boxing them
+     * @param x     The X coordinate of the block
+     * @param y     The Y coordinate of the block
+     * @param z     The Z coordinate of the block
+     * @param key   The key of the value
+     * @param info  The info of the block
+     * @param i     The index of the value's entry in the info
+     */
+    synchronized void set(int x, int y, int z, NamespacedKey key, BlockInfo info, int i) {
+        try {
+            start(x, y, z, SET);
+            RegionFile.writeString(recordOut, key.getNamespace());
+            RegionFile.writeString(recordOut, key.getKey());
+            RegionFile.writeValue(recordOut, info, i);
+            finish();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Record that a key was removed from a block
+     * @param x     The X coordinate of the block
+     * @param y     The Y coordinate of the block
+     * @param z     The Z coordinate of the block
+     * @param key   The removed key
+     */
+    synchronized void remove(int x, int y, int z, NamespacedKey key) {
+        try {
+            start(x, y, z, REMOVE_KEY);
+            RegionFile.writeString(recordOut, key.getNamespace());
+            RegionFile.writeString(recordOut, key.getKey());
+            finish();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Record that all values of a namespace were removed from a block
+     * @param x         The X coordinate of the block
+     * @param y         The Y coordinate of the block
+     * @param z         The Z coordinate of the block
+     * @param namespace The removed namespace
+     */
+    synchronized void removeNamespace(int x, int y, int z, String namespace) {
+        try {
+            start(x, y, z, REMOVE_NAMESPACE);
+            RegionFile.writeString(recordOut, namespace);
+            finish();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Record that all values were removed from a block
+     * @param x     The X coordinate of the block
+     * @param y     The Y coordinate of the block
+     * @param z     The Z coordinate of the block
+     */
+    synchronized void remove(int x, int y, int z) {
+        try {
+            start(x, y, z, REMOVE_ALL);
+            finish();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void start(int x, int y, int z, byte operation) throws IOException {
+        record.reset();
+        RegionFile.writeSignedVarInt(recordOut, x);
+        RegionFile.writeSignedVarInt(recordOut, y);
+        RegionFile.writeSignedVarInt(recordOut, z);
+        recordOut.writeByte(operation);
+    }
+
+    private void finish() throws IOException {
+        crc.reset();
+        crc.update(record.toByteArray(), 0, record.size());
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(record.size());
+        out.writeInt((int) crc.getValue());
+        record.writeTo(out);
+    }
+
+    /**
+     * Apply the records of a region which were loaded from the disk. The records are
+     * dropped from memory afterwards, they stay in the file until the next compaction.
+     * @param regionX   The X coordinate of the region
+     * @param regionZ   The Z coordinate of the region
+     * @param consumer  The consumer to apply the records with
+     * @throws IOException When a record could not be read
+     */
+    void replay(int regionX, int regionZ, RecordConsumer consumer) throws IOException {
+        ByteArrayOutputStream records;
+        synchronized (this) {
+            records = unreplayed.remove(pack(regionX, regionZ));
+        }
+        if (records != null) {
+            apply(records.toByteArray(), consumer);
+        }
+    }
+
+    /**
+     * Visit the records of all regions which weren't replayed yet without dropping them
+     * @param consumer  The consumer to call for every record
+     * @throws IOException When a record could not be read
+     */
+    void forEachUnreplayed(RecordConsumer consumer) throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        synchronized (this) {
+            unreplayed.forEach((region, regionRecords) -> records.add(regionRecords.toByteArray()));
+        }
+        for (byte[] regionRecords : records) {
+            apply(regionRecords, consumer);
+        }
+    }
+
+    private static void apply(byte[] records, RecordConsumer consumer) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(records));
+        while (in.available() > 0) {
+            int x = RegionFile.readSignedVarInt(in);
+            int y = RegionFile.readSignedVarInt(in);
+            int z = RegionFile.readSignedVarInt(in);
+            byte operation = in.readByte();
+            switch (operation) {
+                case SET:
+                    consumer.accept(operation, x, y, z, RegionFile.readString(in), RegionFile.readString(in), RegionFile.readValue(in));
+                    break;
+                case REMOVE_KEY:
+                    consumer.accept(operation, x, y, z, RegionFile.readString(in), RegionFile.readString(in), null);
+                    break;
+                case REMOVE_NAMESPACE:
+                    consumer.accept(operation, x, y, z, RegionFile.readString(in), null, null);
+                    break;
+                case REMOVE_ALL:
+                    consumer.accept(operation, x, y, z, null, null, null);
+                    break;
+                default:
+                    throw new IOException("Unknown journal operation " + operation);
+            }
+        }
+    }
+
+    /**
+     * Get the regions which have records that weren't replayed yet
+     * @return The regions' coordinates, X in the upper and Z in the lower 32 bits
+     */
+    synchronized long[] getUnreplayedRegions() {
+        long[] regions = new long[unreplayed.size()];
+        int[] index = new int[1];
+        unreplayed.forEach((region, records) -> regions[index[0]++] = region);
+        return regions;
+    }
+
+    /**
+     * Append all collected records to the journal file and force them to the disk
+     * @throws IOException When the records could not be written, they are kept for the next try
+     */
+    void flush() throws IOException {
+        synchronized (fileLock) {
+            byte[] data;
+            synchronized (this) {
+                if (buffer.size() == 0) {
+                    return;
+                }
+                data = buffer.toByteArray();
+                buffer.reset();
+            }
+            try {
+                file.getParentFile().mkdirs();
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                    if (channel.size() == 0) {
+                        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                        header.putInt(MAGIC).putInt(VERSION).flip();
+                        channel.write(header);
+                    }
+                    ByteBuffer records = ByteBuffer.wrap(data);
+                    while (records.hasRemaining()) {
+                        channel.write(records);
+                    }
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    ByteArrayOutputStream retry = new ByteArrayOutputStream(data.length + buffer.size());
+                    retry.write(data, 0, data.length);
+                    buffer.writeTo(retry);
+                    buffer = retry;
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Start a compaction by moving the current journal file aside. New records go to a new file
+     * while the regions with changes in the old one get written.
+     * @return false if there is nothing to compact
+     * @throws IOException When the journal file could not be moved
+     */
+    boolean rotate() throws IOException {
+        synchronized (fileLock) {
+            flush();
+            if (!file.exists()) {
+                return compactingFile.exists();
+            }
+            if (compactingFile.exists()) {
+                // The last compaction didn't finish, keep the records in order
+                byte[] data = Files.readAllBytes(file.toPath());
+                Files.write(compactingFile.toPath(), Arrays.copyOfRange(data, HEADER_SIZE, data.length), StandardOpenOption.APPEND);
+                Files.delete(file.toPath());
+            } else {
+                try {
+                    Files.move(file.toPath(), compactingFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(file.toPath(), compactingFile.toPath());
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Finish a compaction after all regions with changes in the old journal file were written
+     * @throws IOException When the old journal file could not be deleted
+     */
+    void finishCompaction() throws IOException {
+        synchronized (fileLock) {
+            Files.deleteIfExists(compactingFile.toPath());
+        }
+    }
+
+    /**
+     * Consumes the records of a journal
+     */
+    interface RecordConsumer {
+        void accept(byte operation, int x, int y, int z, String namespace, String key, Object value) throws IOException;
+    }
+}
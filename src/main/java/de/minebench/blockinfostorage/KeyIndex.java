@@ -0,0 +1,462 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.bukkit.NamespacedKey;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A per-world index of the positions of all blocks which carry a certain key.
+ * It is kept up to date by the {@link Region}s and stored next to their files
+ * so that it can be queried without loading any region. The stored file is only
+ * trusted after a clean shutdown, it gets deleted when it is loaded and written
+ * again when the world gets unloaded. Otherwise the index gets rebuilt.
+ * <p>
+ * The index knows when the values of its positions expire so that it doesn't return
+ * positions whose value expired in a region which wasn't loaded since.
+ */
+class KeyIndex {
+
+    private static final int MAGIC = 0x4249534B; // "BISK"
+    private static final int VERSION = 2;
+    private static final Long NEVER = 0L;
+
+    private final File file;
+    private final AtomicBoolean queued = new AtomicBoolean(false);
+
+    // Maps the positions to the time at which their value expires, 0 if it never does
+    @SuppressWarnings("unchecked")
+    private LongObjectHashMap<Long>[] positions = (LongObjectHashMap<Long>[]) new LongObjectHashMap<?>[16];
+    private volatile boolean modified = false;
+    private final CompletableFuture<Void> built = new CompletableFuture<>();
+    // Modifications which happen while the index gets rebuilt, they are applied on top of the rebuilt index
+    private List<Modification> missed = null;
+    // Set when the rebuild was stopped, the partial index must not get saved then
+    private boolean incomplete = false;
+
+    private KeyIndex(File folder) {
+        this.file = new File(folder, "keys.idx");
+    }
+
+    /**
+     * Load the index of a world's block info folder. If there is no valid index file
+     * it gets rebuilt from the world's stored block info and journal in the background.
+     * @param folder    The block info folder of the world
+     * @param worldId   The ID of the world
+     * @param backend   The backend which stores the world's block info
+     * @param journal   The journal of the world, null if it has none
+     * @param executor  The executor to rebuild the index on, interrupting it stops the rebuild
+     * @param logger    The logger to log problems to
+     * @return The loaded index, it might still be getting rebuilt
+     */
+    static KeyIndex load(File folder, UUID worldId, StorageBackend backend, Journal journal, Executor executor, Logger logger) {
+        KeyIndex index = new KeyIndex(folder);
+        if (index.file.exists()) {
+            try {
+                index.read();
+                index.invalidate(logger);
+                index.built.complete(null);
+                return index;
+            } catch (IOException | IllegalArgumentException e) {
+                logger.log(Level.WARNING, "Unable to read block info key index " + index.file + ", rebuilding it", e);
+            }
+        }
+        KeyIndex rebuilt = new KeyIndex(folder);
+        rebuilt.missed = new ArrayList<>();
+        Runnable task = () -> rebuilt.rebuild(folder, worldId, backend, journal, logger);
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+        return rebuilt;
+    }
+
+    private void read() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a block info key index!");
+            }
+            int version = in.readInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException(file + " has unsupported version " + version + "!");
+            }
+            int keys = RegionFile.readVarInt(in);
+            for (int i = 0; i < keys; i++) {
+                int keyId = KeyRegistry.id(new NamespacedKey(RegionFile.readString(in), RegionFile.readString(in)));
+                int count = RegionFile.readVarInt(in);
+                int expiring = version > 1 ? RegionFile.readVarInt(in) : 0;
+                LongObjectHashMap<Long> set = new LongObjectHashMap<>(count + expiring);
+                for (int j = 0; j < count; j++) {
+                    set.put(in.readLong(), NEVER);
+                }
+                for (int j = 0; j < expiring; j++) {
+                    set.put(in.readLong(), in.readLong());
+                }
+                ensureCapacity(keyId);
+                positions[keyId] = set;
+            }
+        }
+    }
+
+    /**
+     * Delete the loaded file so that the index gets rebuilt if the server doesn't shut down cleanly.
+     * Regions and the journal get written independently from it so it could miss modifications then.
+     */
+    private void invalidate(Logger logger) {
+        try {
+            Files.delete(file.toPath());
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to delete block info key index " + file + ", it might be outdated after a crash", e);
+        }
+        modified = true;
+    }
+
+    private void rebuild(File folder, UUID worldId, StorageBackend backend, Journal journal, Logger logger) {
+        try {
+            if (folder.isDirectory()) {
+                logger.log(Level.INFO, "Building block info key index for " + folder + "...");
+                long now = System.currentTimeMillis();
+                backend.readAll(worldId, (x, y, z, namespace, key, value) -> {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new CancellationException();
+                    }
+                    if (!isExpired(value, now)) {
+                        synchronized (this) {
+                            addPosition(KeyRegistry.id(new NamespacedKey(namespace, key)), pack(x, y, z), expiresAt(value));
+                        }
+                    }
+                });
+                if (journal != null) {
+                    // The stored data doesn't contain the records which weren't written into the regions yet
+                    journal.forEachUnreplayed(this::apply);
+                }
+            }
+        } catch (CancellationException e) {
+            logger.log(Level.INFO, "Stopped building block info key index for " + folder + ", it gets rebuilt on the next start");
+            synchronized (this) {
+                incomplete = true;
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.SEVERE, "Unable to index the block info of " + folder, e);
+        } finally {
+            synchronized (this) {
+                for (Modification modification : missed) {
+                    if (modification.added) {
+                        addPosition(modification.keyId, modification.position, modification.expiresAt);
+                    } else {
+                        removePosition(modification.keyId, modification.position);
+                    }
+                }
+                missed = null;
+                modified = true;
+            }
+            built.complete(null);
+        }
+    }
+
+    private static boolean isExpired(Object value, long now) {
+        return value instanceof ExpiringValue && ((ExpiringValue) value).getExpiresAt() <= now;
+    }
+
+    private static long expiresAt(Object value) {
+        return value instanceof ExpiringValue ? ((ExpiringValue) value).getExpiresAt() : 0;
+    }
+
+    /**
+     * Apply a journal record like {@link Region} does when replaying it
+     */
+    private synchronized void apply(byte operation, int x, int y, int z, String namespace, String key, Object value) {
+        long position = pack(x, y, z);
+        switch (operation) {
+            case Journal.SET:
+                int keyId = KeyRegistry.id(new NamespacedKey(namespace, key));
+                if (isExpired(value, System.currentTimeMillis())) {
+                    removePosition(keyId, position);
+                } else {
+                    addPosition(keyId, position, expiresAt(value));
+                }
+                break;
+            case Journal.REMOVE_KEY:
+                removePosition(KeyRegistry.lookup(new NamespacedKey(namespace, key)), position);
+                break;
+            case Journal.REMOVE_NAMESPACE:
+                int namespaceId = KeyRegistry.lookupNamespace(namespace);
+                for (int i = 0; i < positions.length; i++) {
+                    if (positions[i] != null && KeyRegistry.namespace(i) == namespaceId) {
+                        removePosition(i, position);
+                    }
+                }
+                break;
+            case Journal.REMOVE_ALL:
+                for (int i = 0; i < positions.length; i++) {
+                    removePosition(i, position);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Pack block coordinates of a whole world into a single long
+     */
+    static long pack(int x, int y, int z) {
+        return ((long) x & 0x3FFFFFF) << 38 | ((long) z & 0x3FFFFFF) << 12 | (y & 0xFFF);
+    }
+
+    static int unpackX(long position) {
+        return (int) (position >> 38);
+    }
+
+    static int unpackY(long position) {
+        return (int) (position << 52 >> 52);
+    }
+
+    static int unpackZ(long position) {
+        return (int) (position << 26 >> 38);
+    }
+
+    private void ensureCapacity(int keyId) {
+        if (keyId >= positions.length) {
+            positions = Arrays.copyOf(positions, Math.max(keyId + 1, positions.length * 2));
+        }
+    }
+
+    /**
+     * Add a block to the index of a key or update when its value expires
+     * @param keyId     The {@link KeyRegistry} id of the key
+     * @param x         The X coordinate of the block
+     * @param y         The Y coordinate of the block
+     * @param z         The Z coordinate of the block
+     * @param expiresAt The time in milliseconds at which the value expires, 0 if it never does
+     */
+    synchronized void add(int keyId, int x, int y, int z, long expiresAt) {
+        if (missed != null) {
+            missed.add(new Modification(keyId, pack(x, y, z), true, expiresAt));
+        } else {
+            addPosition(keyId, pack(x, y, z), expiresAt);
+        }
+    }
+
+    /**
+     * Remove a block from the index of a key
+     * @param keyId The {@link KeyRegistry} id of the key
+     * @param x     The X coordinate of the block
+     * @param y     The Y coordinate of the block
+     * @param z     The Z coordinate of the block
+     */
+    synchronized void remove(int keyId, int x, int y, int z) {
+        if (missed != null) {
+            missed.add(new Modification(keyId, pack(x, y, z), false, 0));
+        } else {
+            removePosition(keyId, pack(x, y, z));
+        }
+    }
+
+    private void addPosition(int keyId, long position, long expiresAt) {
+        ensureCapacity(keyId);
+        if (positions[keyId] == null) {
+            positions[keyId] = new LongObjectHashMap<>();
+        }
+        Long previous = positions[keyId].put(position, expiresAt != 0 ? expiresAt : NEVER);
+        if (previous == null || previous != expiresAt) {
+            modified = true;
+        }
+    }
+
+    private void removePosition(int keyId, long position) {
+        if (keyId >= 0 && keyId < positions.length && positions[keyId] != null && positions[keyId].remove(position) != null) {
+            modified = true;
+        }
+    }
+
+    /**
+     * Get a future which completes once the index is usable, i.e. when it was loaded or rebuilt
+     * @return The future
+     */
+    CompletableFuture<Void> whenBuilt() {
+        return built;
+    }
+
+    /**
+     * Get the packed positions of all blocks with a key. Waits for the index to get rebuilt if it isn't yet.
+     * Positions whose value expired get dropped from the index.
+     * @param keyId The {@link KeyRegistry} id of the key
+     * @return The positions packed with {@link #pack(int, int, int)}
+     */
+    long[] get(int keyId) {
+        built.join();
+        return getBuilt(keyId);
+    }
+
+    private synchronized long[] getBuilt(int keyId) {
+        if (keyId < 0 || keyId >= positions.length || positions[keyId] == null) {
+            return new long[0];
+        }
+        long now = System.currentTimeMillis();
+        long[] result = new long[positions[keyId].size()];
+        int[] index = new int[2];
+        positions[keyId].forEach((position, expiresAt) -> {
+            if (expiresAt != 0 && expiresAt <= now) {
+                // Collected at the end of the array as the map can't be modified while iterating it
+                result[result.length - ++index[1]] = position;
+            } else {
+                result[index[0]++] = position;
+            }
+        });
+        if (index[1] == 0) {
+            return result;
+        }
+        for (int i = index[0]; i < result.length; i++) {
+            removePosition(keyId, result[i]);
+        }
+        return Arrays.copyOf(result, index[0]);
+    }
+
+    /**
+     * Mark this index as queued for saving
+     * @return false if it already was queued
+     */
+    boolean markQueued() {
+        return queued.compareAndSet(false, true);
+    }
+
+    boolean isModified() {
+        return modified;
+    }
+
+    /**
+     * Write the index to its file if it was modified. This should only be done when its world
+     * gets unloaded, an index which is still getting rebuilt doesn't get written at all.
+     * @throws IOException When the file could not be written
+     */
+    void save() throws IOException {
+        queued.set(false);
+        byte[] data;
+        synchronized (this) {
+            if (!modified || missed != null || incomplete) {
+                return;
+            }
+            data = serialize();
+            modified = false;
+        }
+        try {
+            file.getParentFile().mkdirs();
+            File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+            Files.write(tempFile.toPath(), data);
+            try {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            modified = true;
+            throw e;
+        }
+    }
+
+    private byte[] serialize() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        int keys = 0;
+        for (LongObjectHashMap<Long> set : positions) {
+            if (set != null && !set.isEmpty()) {
+                keys++;
+            }
+        }
+        RegionFile.writeVarInt(out, keys);
+        for (int keyId = 0; keyId < positions.length; keyId++) {
+            LongObjectHashMap<Long> set = positions[keyId];
+            if (set == null || set.isEmpty()) {
+                continue;
+            }
+            NamespacedKey key = KeyRegistry.key(keyId);
+            RegionFile.writeString(out, key.getNamespace());
+            RegionFile.writeString(out, key.getKey());
+            // Positions which never expire first so that they don't need to store an expiry
+            int[] expiring = new int[1];
+            set.forEach((position, expiresAt) -> {
+                if (expiresAt != 0) {
+                    expiring[0]++;
+                }
+            });
+            RegionFile.writeVarInt(out, set.size() - expiring[0]);
+            RegionFile.writeVarInt(out, expiring[0]);
+            IOException[] error = new IOException[1];
+            set.forEach((position, expiresAt) -> {
+                try {
+                    if (expiresAt == 0) {
+                        out.writeLong(position);
+                    }
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            });
+            set.forEach((position, expiresAt) -> {
+                try {
+                    if (expiresAt != 0) {
+                        out.writeLong(position);
+                        out.writeLong(expiresAt);
+                    }
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            });
+            if (error[0] != null) {
+                throw error[0];
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static class Modification {
+        private final int keyId;
+        private final long position;
+        private final boolean added;
+        private final long expiresAt;
+
+        private Modification(int keyId, long position, boolean added, long expiresAt) {
+            this.keyId = keyId;
+            this.position = position;
+            this.added = added;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
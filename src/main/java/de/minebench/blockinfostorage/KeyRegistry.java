@@ -0,0 +1,109 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.bukkit.NamespacedKey;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns {@link NamespacedKey}s and their namespaces to small int ids which
+ * are only valid for the runtime of the server.
+ */
+final class KeyRegistry {
+
+    private static final Map<NamespacedKey, Integer> keyIds = new ConcurrentHashMap<>();
+    private static final Map<String, Integer> namespaceIds = new ConcurrentHashMap<>();
+
+    private static volatile NamespacedKey[] keys = new NamespacedKey[64];
+    private static volatile int[] keyNamespaces = new int[64];
+
+    private KeyRegistry() {}
+
+    /**
+     * Get the id of a key, registers the key if it doesn't have one yet
+     * @param key   The key
+     * @return The id of the key
+     */
+    static int id(NamespacedKey key) {
+        Integer id = keyIds.get(key);
+        if (id != null) {
+            return id;
+        }
+        return register(key);
+    }
+
+    /**
+     * Get the id of a key without registering it
+     * @param key   The key
+     * @return The id of the key or -1 if it isn't registered
+     */
+    static int lookup(NamespacedKey key) {
+        Integer id = keyIds.get(key);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * Get the id of a namespace without registering it
+     * @param namespace The namespace
+     * @return The id of the namespace or -1 if no key with it is registered
+     */
+    static int lookupNamespace(String namespace) {
+        Integer id = namespaceIds.get(namespace);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * Get the key for an id
+     * @param id    The id of the key
+     * @return The key
+     */
+    static NamespacedKey key(int id) {
+        return keys[id];
+    }
+
+    /**
+     * Get the namespace id of a key
+     * @param id    The id of the key
+     * @return The id of the key's namespace
+     */
+    static int namespace(int id) {
+        return keyNamespaces[id];
+    }
+
+    private static synchronized int register(NamespacedKey key) {
+        Integer id = keyIds.get(key);
+        if (id != null) {
+            return id;
+        }
+        int newId = keyIds.size();
+        int namespaceId = namespaceIds.computeIfAbsent(key.getNamespace(), n -> namespaceIds.size());
+        if (newId >= keys.length) {
+            // Publish the new namespace array first, keys are only read after their id got published
+            keyNamespaces = Arrays.copyOf(keyNamespaces, keys.length * 2);
+            keys = Arrays.copyOf(keys, keys.length * 2);
+        }
+        keyNamespaces[newId] = namespaceId;
+        keys[newId] = key;
+        keyIds.put(key, newId);
+        return newId;
+    }
+}
@@ -0,0 +1,51 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Histograms of the work that the storage does. They only get recorded once per I/O operation
+ * or blocking wait so they don't add anything to the cost of lookups of cached regions.
+ */
+final class Metrics {
+
+    /** Duration of loading a region's header, legacy data and journal records */
+    static final Histogram REGION_LOAD_TIME = new Histogram();
+    /** Size of the loaded region files */
+    static final Histogram REGION_LOAD_BYTES = new Histogram();
+    /** Duration of reading a chunk's data onto the heap */
+    static final Histogram CHUNK_READ_TIME = new Histogram();
+    /** Size of the read chunk payloads */
+    static final Histogram CHUNK_READ_BYTES = new Histogram();
+    /** Amount of entries in the read chunks */
+    static final Histogram CHUNK_READ_ENTRIES = new Histogram();
+    /** Duration of writing a region file */
+    static final Histogram REGION_SAVE_TIME = new Histogram();
+    /** Size of the written region files */
+    static final Histogram REGION_SAVE_BYTES = new Histogram();
+    /** Amount of entries of modified chunks that got written */
+    static final Histogram REGION_SAVE_ENTRIES = new Histogram();
+    /** Time that threads waited for another thread to finish loading a region */
+    static final Histogram LOCK_WAIT_TIME = new Histogram();
+    /** Time that threads were blocked by a region that wasn't cached yet */
+    static final Histogram BLOCKING_LOAD_TIME = new Histogram();
+    /** Time from a chunk load to its block info being available */
+    static final Histogram ASYNC_LOAD_TIME = new Histogram();
+
+    private Metrics() {}
+}
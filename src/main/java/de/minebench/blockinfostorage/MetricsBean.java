@@ -0,0 +1,122 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.IntSupplier;
+
+/**
+ * Exposes the {@link Metrics} together with the state of the cache and the pending work
+ */
+class MetricsBean implements BlockInfoStorageMXBean {
+
+    private final RegionCache cache;
+    private final RegionWriter writer;
+    private final ThreadPoolExecutor ioExecutor;
+    private final IntSupplier pendingLoads;
+
+    /**
+     * Create the bean
+     * @param cache         The cache of loaded regions
+     * @param writer        The writer which writes the regions
+     * @param ioExecutor    The executor which loads the regions
+     * @param pendingLoads  Supplies the amount of regions which are currently loading
+     */
+    MetricsBean(RegionCache cache, RegionWriter writer, ThreadPoolExecutor ioExecutor, IntSupplier pendingLoads) {
+        this.cache = cache;
+        this.writer = writer;
+        this.ioExecutor = ioExecutor;
+        this.pendingLoads = pendingLoads;
+    }
+
+    @Override
+    public CacheStats getCacheStats() {
+        return cache.getStats();
+    }
+
+    @Override
+    public HistogramStats getRegionLoadTime() {
+        return Metrics.REGION_LOAD_TIME.snapshot();
+    }
+
+    @Override
+    public HistogramStats getRegionLoadBytes() {
+        return Metrics.REGION_LOAD_BYTES.snapshot();
+    }
+
+    @Override
+    public HistogramStats getChunkReadTime() {
+        return Metrics.CHUNK_READ_TIME.snapshot();
+    }
+
+    @Override
+    public HistogramStats getChunkReadBytes() {
+        return Metrics.CHUNK_READ_BYTES.snapshot();
+    }
+
+    @Override
+    public HistogramStats getChunkReadEntries() {
+        return Metrics.CHUNK_READ_ENTRIES.snapshot();
+    }
+
+    @Override
+    public HistogramStats getRegionSaveTime() {
+        return Metrics.REGION_SAVE_TIME.snapshot();
+    }
+
+    @Override
+    public HistogramStats getRegionSaveBytes() {
+        return Metrics.REGION_SAVE_BYTES.snapshot();
+    }
+
+    @Override
+    public HistogramStats getRegionSaveEntries() {
+        return Metrics.REGION_SAVE_ENTRIES.snapshot();
+    }
+
+    @Override
+    public HistogramStats getLockWaitTime() {
+        return Metrics.LOCK_WAIT_TIME.snapshot();
+    }
+
+    @Override
+    public HistogramStats getBlockingLoadTime() {
+        return Metrics.BLOCKING_LOAD_TIME.snapshot();
+    }
+
+    @Override
+    public HistogramStats getAsyncLoadTime() {
+        return Metrics.ASYNC_LOAD_TIME.snapshot();
+    }
+
+    @Override
+    public int getPendingLoads() {
+        return pendingLoads.getAsInt();
+    }
+
+    @Override
+    public int getPendingIoTasks() {
+        return ioExecutor.getQueue().size() + ioExecutor.getActiveCount();
+    }
+
+    @Override
+    public int getPendingWrites() {
+        return writer.getQueueSize();
+    }
+}
@@ -18,151 +18,1080 @@ package de.minebench.blockinfostorage;
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
-import org.bukkit.Bukkit;
 import org.bukkit.NamespacedKey;
-import org.bukkit.World;
 import org.bukkit.configuration.ConfigurationSection;
-import org.bukkit.configuration.file.FileConfiguration;
-import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.configuration.MemoryConfiguration;
 
-import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.UncheckedIOException;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
 
 class Region {
 
     private final Location location;
-    private final File configFile;
+    private final KeyIndex keyIndex;
+    private final Journal journal;
+    private final StorageBackend backend;
+    private final ExpiryWheel expiries;
+    private final Subscriptions subscriptions;
 
-    private final Map<Integer, Integer> loaded = new HashMap<>();
+    private volatile boolean modified = false;
+    private volatile boolean evicted = false;
+    private RegionWriter evictionWriter = null;
+    private boolean evictionSaveQueued = false;
+    private volatile long lastAccess = 0;
 
-    private boolean modified = false;
+    private boolean initialized = false;
+    private boolean journaling = true;
+    private StorageBackend.Stored stored = null;
+    private final ChunkSection[] sections = new ChunkSection[RegionFile.CHUNKS];
+    private final long[] chunkPresence = new long[RegionFile.CHUNKS / 64];
+    private final AtomicLongArray columns = new AtomicLongArray(RegionFile.CHUNKS * 4);
+    private volatile boolean columnsReady = false;
 
-    private FileConfiguration config = null;
-
-    Region(Location location) {
+    /**
+     * Create a new region
+     * @param location      The location of the region
+     * @param keyIndex      The key index of the region's world
+     * @param journal       The journal of the region's world, null if modifications shouldn't be journaled
+     * @param backend       The backend which stores the region's data
+     * @param expiries      The wheel to schedule the removal of expiring info in, null if expired
+     *                      info should only be dropped when it gets read or saved
+     * @param subscriptions The subscriptions to publish modifications to, null if they shouldn't be published
+     */
+    Region(Location location, KeyIndex keyIndex, Journal journal, StorageBackend backend, ExpiryWheel expiries, Subscriptions subscriptions) {
         this.location = location;
-        World world = Bukkit.getWorld(location.worldId);
-        if (world == null) {
-            throw new IllegalStateException("Could not find world with ID " + location.worldId + "?");
+        this.keyIndex = keyIndex;
+        this.journal = journal;
+        this.backend = backend;
+        this.expiries = expiries;
+        this.subscriptions = subscriptions;
+    }
+
+    /**
+     * Mark this region as used right now
+     */
+    void touch() {
+        lastAccess = System.currentTimeMillis();
+    }
+
+    /**
+     * Get the time this region was last used at
+     * @return The timestamp in milliseconds
+     */
+    long getLastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * Check whether or not this region was evicted from the cache
+     * @return true if it was evicted and isn't cached anymore
+     */
+    boolean isEvicted() {
+        return evicted;
+    }
+
+    /**
+     * Mark this region as evicted from the cache. Modifications through references which were obtained
+     * before that queue another save so that they get written even if the writer already checked it.
+     * @param writer    The writer to save the region with
+     */
+    synchronized void evict(RegionWriter writer) {
+        evictionWriter = writer;
+        evictionSaveQueued = false;
+        evicted = true;
+    }
+
+    /**
+     * Mark this region as cached again after it was evicted
+     */
+    synchronized void restore() {
+        evictionWriter = null;
+        evicted = false;
+    }
+
+    /**
+     * Get a rough estimate of the memory that the loaded data of this region uses
+     * @return The estimated memory in bytes
+     */
+    synchronized long estimateMemory() {
+        long memory = 512 + RegionFile.CHUNKS * 36;
+        if (stored != null) {
+            memory += RegionFile.CHUNKS * 8;
+        }
+        for (ChunkSection section : sections) {
+            if (section != null) {
+                memory += section.estimateMemory();
+            }
+        }
+        return memory;
+    }
+
+    /**
+     * Load which chunks of the region have stored data. The data of the chunks only gets read when it
+     * is accessed. Data which the backend migrates from an older format gets marked as modified so
+     * that the next save stores it in the current one. Modifications which were only journaled get
+     * replayed on top of the stored data.
+     * @throws IOException When the region could not be loaded
+     */
+    synchronized void load() throws IOException {
+        if (initialized) {
+            throw new IllegalStateException("Region is already loaded!");
         }
-        this.configFile = new File(new File(world.getWorldFolder(), "blockinfo"), "bi." + location.x + "." + location.z + ".yml");
+        long start = System.nanoTime();
+        initialized = true;
+        journaling = false;
+        try {
+            setStored(backend.load(location, (x, y, z, namespace, key, value) ->
+                    setInfo(x, y, z, new NamespacedKey(namespace, key), value)));
+            if (journal != null) {
+                journal.replay(location.x, location.z, this::replay);
+            }
+        } finally {
+            journaling = true;
+        }
+        columnsReady = true;
+        Metrics.REGION_LOAD_TIME.recordSince(start);
     }
 
     /**
-     * Notify this holder that a certain chunk got loaded
-     * @param x The X coordinate of the chunk
-     * @param z The Z coordinate of the chunk
+     * Check whether or not a chunk only exists in the stored data which can be read
+     * in place and wasn't copied onto the heap
+     * @param chunk The index of the chunk
+     * @return true if its data has to be read in place
      */
-    void notifyLoad(int x, int z) {
-        loaded.put(x, z);
+    private boolean isInPlace(int chunk) {
+        return stored != null && stored.readsInPlace() && sections[chunk] == null && stored.hasChunk(chunk);
+    }
+
+    /**
+     * Read the entries of a block of a chunk in place
+     * @param x         The X coordinate of the block
+     * @param y         The Y coordinate of the block
+     * @param z         The Z coordinate of the block
+     * @param namespace The namespace of the entries to read, null to read all entries
+     * @param key       The key of the entries to read, null to read all entries of the namespace
+     * @return A detached info with the matching entries or null if the block has none
+     */
+    private BlockInfo readInPlace(int x, int y, int z, String namespace, String key) {
+        BlockInfo info = new BlockInfo();
+        try {
+            stored.readBlock(x, y, z, namespace, key, (bx, by, bz, entryNamespace, entryKey, value) ->
+                    info.set(KeyRegistry.id(new NamespacedKey(entryNamespace, entryKey)), value));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read block " + x + "," + y + "," + z + " of region " + location, e);
+        }
+        if (info.hasExpiring()) {
+            // The stored data can't be modified in place, it gets dropped once the chunk is copied
+            info.removeExpired(System.currentTimeMillis());
+        }
+        return info.isEmpty() ? null : info;
+    }
+
+    /**
+     * Check whether a block of a chunk that is read in place has no matching entries so that a
+     * modification which wouldn't change anything doesn't need to copy the chunk onto the heap
+     * @param x         The X coordinate of the block
+     * @param y         The Y coordinate of the block
+     * @param z         The Z coordinate of the block
+     * @param namespace The namespace of the entries, null for all entries
+     * @param key       The key of the entries, null for all entries of the namespace
+     * @return true if the chunk is read in place and the block has no matching entry
+     */
+    private boolean isInPlaceWithout(int x, int y, int z, String namespace, String key) {
+        if (!isInPlace(RegionFile.chunkIndex(x, z))) {
+            return false;
+        }
+        try {
+            return !stored.readBlock(x, y, z, namespace, key, null);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read block " + x + "," + y + "," + z + " of region " + location, e);
+        }
+    }
+
+    private void replay(byte operation, int x, int y, int z, String namespace, String key, Object value) {
+        switch (operation) {
+            case Journal.SET:
+                setInfo(x, y, z, new NamespacedKey(namespace, key), value);
+                break;
+            case Journal.REMOVE_KEY:
+                removeInfo(x, y, z, new NamespacedKey(namespace, key));
+                break;
+            case Journal.REMOVE_NAMESPACE:
+                removeInfo(x, y, z, namespace);
+                break;
+            case Journal.REMOVE_ALL:
+                removeInfo(x, y, z);
+                break;
+        }
     }
 
     /**
-     * Notify this holder that a certain chunk got unloaded
-     * @param x The X coordinate of the chunk
-     * @param z The Z coordinate of the chunk
+     * Check whether or not this region was loaded from its backend
+     * @return true if it was loaded, false if not
      */
-    void notifyUnload(int x, int z) {
-        loaded.remove(x, z);
+    synchronized boolean isLoaded() {
+        return initialized;
     }
 
     /**
-     * Check whether or not a region is fully unloaded
-     * @return true if no chunk is loaded anymore, false if there stilla re some
+     * Make sure that the data of a chunk is read from the disk
+     * @param chunkX    The X coordinate of the chunk
+     * @param chunkZ    The Z coordinate of the chunk
      */
-    boolean isUnloaded() {
-        return loaded.isEmpty();
+    synchronized void loadChunk(int chunkX, int chunkZ) {
+        if (stored == null || !stored.readsInPlace()) {
+            getSection(chunkX << 4, chunkZ << 4, false);
+        }
     }
 
     /**
-     * Load the data from the disk
+     * Check whether or not a chunk has data which wasn't read from the disk yet
+     * @param chunkX    The X coordinate of the chunk
+     * @param chunkZ    The Z coordinate of the chunk
+     * @return true if the chunk's data still needs to be read
      */
-    void load() {
-        if (config != null) {
-            throw new IllegalStateException("Config is already loaded!");
+    synchronized boolean needsChunkLoad(int chunkX, int chunkZ) {
+        int chunk = RegionFile.chunkIndex(chunkX << 4, chunkZ << 4);
+        return initialized && sections[chunk] == null && isPresent(chunk) && !isInPlace(chunk);
+    }
+
+    private void setStored(StorageBackend.Stored stored) {
+        this.stored = stored;
+        for (int chunk = 0; chunk < RegionFile.CHUNKS; chunk++) {
+            if ((stored != null && stored.hasChunk(chunk)) || (sections[chunk] != null && !sections[chunk].isEmpty())) {
+                chunkPresence[chunk >> 6] |= 1L << chunk;
+            } else {
+                chunkPresence[chunk >> 6] &= ~(1L << chunk);
+            }
+            if (sections[chunk] == null) {
+                // Columns of chunks that weren't read yet are unknown until they are read
+                long mask = stored != null && stored.hasChunk(chunk) ? -1L : 0L;
+                for (int i = 0; i < 4; i++) {
+                    columns.set(chunk * 4 + i, mask);
+                }
+            }
         }
-        File configFile = getConfigFile();
-        if (configFile.exists()) {
-            config = YamlConfiguration.loadConfiguration(getConfigFile());
-        } else {
-            config = new YamlConfiguration();
+    }
+
+    /**
+     * Check whether or not a block column might have info without locking the region.
+     * This is meant to skip the work for blocks without info, a result of true doesn't
+     * mean that the column has info as it is also returned when it isn't known yet.
+     * @param x The X coordinate of the block
+     * @param z The Z coordinate of the block
+     * @return false if no block in the column has info
+     */
+    boolean mayHaveInfo(int x, int z) {
+        if (!columnsReady) {
+            return true;
         }
+        int column = (x & 15) << 4 | (z & 15);
+        return (columns.get(RegionFile.chunkIndex(x, z) * 4 + (column >> 6)) & 1L << column) != 0;
     }
 
-    private File getConfigFile() {
-        return configFile;
+    private boolean isPresent(int chunk) {
+        return (chunkPresence[chunk >> 6] & 1L << chunk) != 0;
+    }
+
+    /**
+     * Get the section of the chunk that a block is in, reading it from the disk if necessary
+     * @param x         The X coordinate of the block
+     * @param z         The Z coordinate of the block
+     * @param create    Whether or not to create the section if the chunk has no data
+     * @return The section or null if the chunk has no data and create is false
+     */
+    private ChunkSection getSection(int x, int z, boolean create) {
+        if (!initialized) {
+            throw new IllegalStateException("Region isn't loaded yet!");
+        }
+        int chunk = RegionFile.chunkIndex(x, z);
+        ChunkSection section = sections[chunk];
+        if (section == null) {
+            if (isPresent(chunk) && stored != null && stored.hasChunk(chunk)) {
+                section = readSection(chunk);
+            } else if (create) {
+                section = new ChunkSection(columns, chunk, backend.writesBlocks());
+                chunkPresence[chunk >> 6] |= 1L << chunk;
+            } else {
+                return null;
+            }
+            sections[chunk] = section;
+        }
+        return section;
     }
 
-    synchronized void save() throws IOException {
+    /**
+     * Read the data of a chunk from the backend. Info which expired in the meantime gets dropped
+     * and the chunk gets marked as modified so that it also gets removed from the stored data.
+     */
+    private ChunkSection readSection(int chunk) {
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        int[] entries = new int[1];
+        ChunkSection section = new ChunkSection(columns, chunk, backend.writesBlocks());
+        RegionFile.EntryConsumer consumer = (x, y, z, namespace, key, value) -> {
+            int keyId = KeyRegistry.id(new NamespacedKey(namespace, key));
+            long position = pack(x, y, z);
+            if (value instanceof ExpiringValue) {
+                long expiresAt = ((ExpiringValue) value).getExpiresAt();
+                if (expiresAt <= now) {
+                    keyIndex.remove(keyId, x, y, z);
+                    if (isWatched(keyId, x, z)) {
+                        publish(keyId, x, y, z, null);
+                    }
+                    markDirty(section, position);
+                    return;
+                }
+                scheduleExpiry(x, y, z, expiresAt);
+            }
+            section.getOrCreate(position).set(keyId, value);
+            entries[0]++;
+        };
+        long bytes;
+        try {
+            bytes = backend.readChunk(location, stored, chunk, consumer);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read chunk " + chunk + " of region " + location, e);
+        }
+        section.publishColumns();
+        Metrics.CHUNK_READ_TIME.recordSince(start);
+        Metrics.CHUNK_READ_BYTES.record(bytes);
+        Metrics.CHUNK_READ_ENTRIES.record(entries[0]);
+        return section;
+    }
+
+    /**
+     * Check whether or not this region was modified since it was last saved
+     * @return true if it has unsaved modifications
+     */
+    boolean isModified() {
+        return modified;
+    }
+
+    /**
+     * Mark the chunks of a snapshot which couldn't be written as modified again
+     * @param snapshot  The snapshot that failed to be written
+     */
+    synchronized void markModified(Snapshot snapshot) {
+        for (int chunk = 0; chunk < RegionFile.CHUNKS; chunk++) {
+            if (snapshot.positions[chunk] != null && sections[chunk] != null) {
+                for (long position : snapshot.positions[chunk]) {
+                    sections[chunk].setDirty(position);
+                }
+            }
+        }
+        modified = true;
+    }
+
+    /**
+     * Take a snapshot of the region's data if it was modified. This resets the modification state.
+     * Depending on the backend the snapshot contains all blocks of the modified chunks or only
+     * the modified blocks. Chunks which weren't modified are only referenced. Expired info
+     * of the modified chunks gets dropped so that it isn't written.
+     * @return The snapshot or null if the region wasn't modified
+     */
+    synchronized Snapshot snapshot() {
+        evictionSaveQueued = false;
+        if (!modified || !initialized) {
+            return null;
+        }
+        Snapshot snapshot = new Snapshot(location, stored);
+        long now = System.currentTimeMillis();
+        for (int chunk = 0; chunk < RegionFile.CHUNKS; chunk++) {
+            ChunkSection section = sections[chunk];
+            if (section != null && section.isDirty()) {
+                dropExpired(section, now);
+                long[] positions;
+                BlockInfo[] infos;
+                if (backend.writesBlocks()) {
+                    positions = section.getDirtyBlocks();
+                    infos = new BlockInfo[positions.length];
+                    for (int i = 0; i < positions.length; i++) {
+                        BlockInfo info = section.get(positions[i]);
+                        infos[i] = info != null ? info.copy() : null;
+                    }
+                } else {
+                    positions = new long[section.size()];
+                    infos = new BlockInfo[section.size()];
+                    int[] index = new int[1];
+                    section.forEach((position, info) -> {
+                        positions[index[0]] = position;
+                        infos[index[0]] = info.copy();
+                        index[0]++;
+                    });
+                }
+                snapshot.positions[chunk] = positions;
+                snapshot.infos[chunk] = infos;
+                section.clearDirty();
+            } else if (stored != null && stored.hasChunk(chunk)) {
+                snapshot.unchanged[chunk] = true;
+            }
+        }
+        modified = false;
+        return snapshot;
+    }
+
+    /**
+     * Write a snapshot to the backend. The region's stored data gets replaced once the write
+     * was committed. Should only be called from one thread at a time.
+     * @param snapshot  The snapshot to write
+     * @throws IOException When the snapshot could not be written
+     */
+    void write(Snapshot snapshot) throws IOException {
+        long start = System.nanoTime();
+        StorageBackend.Commit commit = backend.write(location, snapshot);
+        // Lazy chunk reads use the stored data, replace it while nothing reads it
+        synchronized (this) {
+            setStored(commit.apply());
+        }
+        Metrics.REGION_SAVE_TIME.recordSince(start);
+        Metrics.REGION_SAVE_ENTRIES.record(snapshot.getEntries());
+    }
+
+    /**
+     * Pack block coordinates into a single long. The X and Z coordinates only keep their
+     * position inside the region (9 bits each), the Y coordinate takes the remaining bits.
+     */
+    private static long pack(int x, int y, int z) {
+        return (long) y << 18 | (x & 511) << 9 | (z & 511);
+    }
+
+    private int unpackX(long position) {
+        return (location.x << 9) + (int) (position >> 9 & 511);
+    }
+
+    private int unpackY(long position) {
+        return (int) (position >> 18);
+    }
+
+    private int unpackZ(long position) {
+        return (location.z << 9) + (int) (position & 511);
+    }
+
+    private void markDirty(ChunkSection section, long position) {
+        section.setDirty(position);
+        // Only write the volatile field once per save, this runs for every single modification
         if (!modified) {
+            modified = true;
+        }
+        if (evictionWriter != null && !evictionSaveQueued) {
+            // Only once until the writer takes its snapshot, it contains all modifications until then
+            evictionSaveQueued = true;
+            evictionWriter.save(this);
+        }
+    }
+
+    private void scheduleExpiry(int x, int y, int z, long expiresAt) {
+        if (expiries != null) {
+            expiries.schedule(location, x, y, z, expiresAt);
+        }
+    }
+
+    /**
+     * Check whether or not a modification of a key on a block needs to be published. Modifications
+     * while the region gets loaded aren't published as they only restore the stored state.
+     */
+    private boolean isWatched(int keyId, int x, int z) {
+        return subscriptions != null && journaling && subscriptions.isWatched(keyId, location.worldId, x, z);
+    }
+
+    private void publish(int keyId, int x, int y, int z, Object value) {
+        subscriptions.publish(location.worldId, x, y, z, keyId, value);
+    }
+
+    /**
+     * Drop the expired entries of a block. The removal doesn't get journaled as the
+     * journaled values contain their expiry and get dropped again when replaying them.
+     * @param section   The section of the block
+     * @param position  The packed position of the block
+     * @param info      The info of the block
+     * @param now       The current time in milliseconds
+     * @return The info or null if all of its entries expired
+     */
+    private BlockInfo dropExpired(ChunkSection section, long position, BlockInfo info, long now) {
+        if (!info.hasExpired(now)) {
+            return info;
+        }
+        int x = unpackX(position);
+        int y = unpackY(position);
+        int z = unpackZ(position);
+        for (int i = 0; i < info.size(); i++) {
+            if (info.isExpired(i, now)) {
+                keyIndex.remove(info.keyAt(i), x, y, z);
+                if (isWatched(info.keyAt(i), x, z)) {
+                    publish(info.keyAt(i), x, y, z, null);
+                }
+            }
+        }
+        info.removeExpired(now);
+        if (info.isEmpty()) {
+            section.remove(position);
+        }
+        markDirty(section, position);
+        return info.isEmpty() ? null : info;
+    }
+
+    /**
+     * Drop the expired entries of all blocks of a section
+     * @param section   The section
+     * @param now       The current time in milliseconds
+     */
+    private void dropExpired(ChunkSection section, long now) {
+        long[][] expired = new long[1][];
+        int[] count = new int[1];
+        section.forEach((position, info) -> {
+            if (info.hasExpired(now)) {
+                if (expired[0] == null) {
+                    expired[0] = new long[section.size()];
+                }
+                expired[0][count[0]++] = position;
+            }
+        });
+        for (int i = 0; i < count[0]; i++) {
+            dropExpired(section, expired[0][i], section.get(expired[0][i]), now);
+        }
+    }
+
+    /**
+     * Remove the info which expired from the blocks of due wheel entries. Chunks which
+     * weren't read yet aren't read for it, they drop their expired info when they get read.
+     * @param entries   The due entries of blocks in this region
+     */
+    synchronized void expire(List<ExpiryWheel.Entry> entries) {
+        long now = System.currentTimeMillis();
+        for (ExpiryWheel.Entry entry : entries) {
+            ChunkSection section = sections[RegionFile.chunkIndex(entry.getX(), entry.getZ())];
+            if (section != null) {
+                long position = pack(entry.getX(), entry.getY(), entry.getZ());
+                BlockInfo info = section.get(position);
+                if (info != null) {
+                    dropExpired(section, position, info, now);
+                }
+            }
+        }
+    }
+
+    synchronized void setInfo(int x, int y, int z, NamespacedKey key, Object value) {
+        if (value == null || value instanceof ExpiringValue && ((ExpiringValue) value).getExpiresAt() <= System.currentTimeMillis()) {
+            removeInfo(x, y, z, key);
             return;
         }
+        ChunkSection section = getSection(x, z, true);
+        int keyId = KeyRegistry.id(key);
+        long position = pack(x, y, z);
+        BlockInfo info = section.getOrCreate(position);
+        long expiresAt = value instanceof ExpiringValue ? ((ExpiringValue) value).getExpiresAt() : 0;
+        // The index also needs to know when the expiry of an existing entry changes
+        boolean expiring = expiresAt != 0 || info.hasExpiring();
+        if (info.set(keyId, value) || expiring) {
+            keyIndex.add(keyId, x, y, z, expiresAt);
+        }
+        if (isWatched(keyId, x, z)) {
+            publish(keyId, x, y, z, value instanceof ExpiringValue ? ((ExpiringValue) value).getValue() : value);
+        }
+        if (expiresAt != 0) {
+            scheduleExpiry(x, y, z, expiresAt);
+        }
+        markDirty(section, position);
+        if (journaling && journal != null) {
+            journal.set(x, y, z, key, value);
+        }
+    }
 
-        File configFile = getConfigFile();
-        configFile.getParentFile().mkdirs();
-        config.save(configFile);
-        modified = false;
+    /**
+     * Set a value which is stored in primitive slots
+     * @param x     The X coordinate of the block
+     * @param y     The Y coordinate of the block
+     * @param z     The Z coordinate of the block
+     * @param key   The key to set
+     * @param type  The {@link BlockInfo} type of the value
+     * @param bits  The value or the first half of it
+     * @param bits2 The second half of the value if it has one
+     */
+    synchronized void setPrimitive(int x, int y, int z, NamespacedKey key, byte type, long bits, long bits2) {
+        ChunkSection section = getSection(x, z, true);
+        int keyId = KeyRegistry.id(key);
+        long position = pack(x, y, z);
+        BlockInfo info = section.getOrCreate(position);
+        // Setting a primitive removes a previous expiry which the index needs to know about
+        boolean expiring = info.hasExpiring();
+        if (info.set(keyId, type, bits, bits2) || expiring) {
+            keyIndex.add(keyId, x, y, z, 0);
+        }
+        if (isWatched(keyId, x, z)) {
+            publish(keyId, x, y, z, info.valueAt(info.indexOf(keyId)));
+        }
+        markDirty(section, position);
+        if (journaling && journal != null) {
+            journal.set(x, y, z, key, info, info.indexOf(keyId));
+        }
     }
 
-    private void ensureLoaded() {
-        if (config == null) {
-            throw new IllegalStateException("Config isn't loaded yet!");
+    /**
+     * Get the info of a block for reading a key. Mapped chunks get read in place.
+     * @param x     The X coordinate of the block
+     * @param y     The Y coordinate of the block
+     * @param z     The Z coordinate of the block
+     * @param key   The key that is going to be read
+     * @return The info, it only contains the key if it was read in place. null if the block has none
+     */
+    private BlockInfo getBlockInfo(int x, int y, int z, NamespacedKey key) {
+        return getBlockInfo(x, y, z, key.getNamespace(), key.getKey());
+    }
+
+    /**
+     * Get the info of a block for reading entries. Mapped chunks get read in place, expired
+     * entries of chunks on the heap get dropped.
+     * @param x         The X coordinate of the block
+     * @param y         The Y coordinate of the block
+     * @param z         The Z coordinate of the block
+     * @param namespace The namespace of the entries that are going to be read
+     * @param key       The key that is going to be read, null to read all entries of the namespace
+     * @return The info, it only contains the matching entries if it was read in place. null if the block has none
+     */
+    private BlockInfo getBlockInfo(int x, int y, int z, String namespace, String key) {
+        if (isInPlace(RegionFile.chunkIndex(x, z))) {
+            return readInPlace(x, y, z, namespace, key);
+        }
+        ChunkSection section = getSection(x, z, false);
+        if (section == null) {
+            return null;
         }
+        long position = pack(x, y, z);
+        BlockInfo info = section.get(position);
+        return info != null && info.hasExpiring() ? dropExpired(section, position, info, System.currentTimeMillis()) : info;
     }
 
-    void setInfo(int x, int y, int z, NamespacedKey key, Object value) {
-        ensureLoaded();
-        config.set(x + "." + y + "." + z + "." + key.getNamespace() + "." + key.getKey(), value);
-        modified = true;
+    synchronized long getLong(int x, int y, int z, NamespacedKey key, long def) {
+        BlockInfo info = getBlockInfo(x, y, z, key);
+        return info != null ? info.getLong(KeyRegistry.lookup(key), def) : def;
+    }
+
+    synchronized double getDouble(int x, int y, int z, NamespacedKey key, double def) {
+        BlockInfo info = getBlockInfo(x, y, z, key);
+        return info != null ? info.getDouble(KeyRegistry.lookup(key), def) : def;
+    }
+
+    synchronized boolean getBoolean(int x, int y, int z, NamespacedKey key, boolean def) {
+        BlockInfo info = getBlockInfo(x, y, z, key);
+        return info != null ? info.getBoolean(KeyRegistry.lookup(key), def) : def;
+    }
+
+    synchronized UUID getUUID(int x, int y, int z, NamespacedKey key) {
+        BlockInfo info = getBlockInfo(x, y, z, key);
+        return info != null ? info.getUUID(KeyRegistry.lookup(key)) : null;
+    }
+
+    synchronized Object getInfoValue(int x, int y, int z, NamespacedKey key) {
+        BlockInfo info = getBlockInfo(x, y, z, key);
+        if (info == null) {
+            return null;
+        }
+        int keyId = KeyRegistry.lookup(key);
+        return keyId < 0 ? null : info.get(keyId);
     }
 
-    Object getInfoValue(int x, int y, int z, NamespacedKey key) {
-        ensureLoaded();
-        return config.get(x + "." + y + "." + z + "." + key.getNamespace() + "." + key.getKey());
+    /**
+     * Get the time at which the value of a key expires
+     * @param x     The X coordinate of the block
+     * @param y     The Y coordinate of the block
+     * @param z     The Z coordinate of the block
+     * @param key   The key
+     * @return The timestamp in milliseconds or 0 if the key has no value or it doesn't expire
+     */
+    synchronized long getExpiry(int x, int y, int z, NamespacedKey key) {
+        BlockInfo info = getBlockInfo(x, y, z, key);
+        int i = info != null ? info.indexOf(KeyRegistry.lookup(key)) : -1;
+        return i < 0 ? 0 : info.expiryAt(i);
     }
 
-    ConfigurationSection getInfo(int x, int y, int z, String key) {
-        ensureLoaded();
-        return config.getConfigurationSection(x + "." + y + "." + z + "." + key);
+    /**
+     * Get a copy of all values of a block whose key has a certain namespace
+     * @param x         The X coordinate of the block
+     * @param y         The Y coordinate of the block
+     * @param z         The Z coordinate of the block
+     * @param namespace The namespace
+     * @return A section with the values or null if the block has none
+     */
+    synchronized ConfigurationSection getInfo(int x, int y, int z, String namespace) {
+        BlockInfo info = getBlockInfo(x, y, z, namespace, null);
+        int namespaceId = KeyRegistry.lookupNamespace(namespace);
+        if (info == null || namespaceId < 0) {
+            return null;
+        }
+        ConfigurationSection section = null;
+        for (int i = 0; i < info.size(); i++) {
+            if (KeyRegistry.namespace(info.keyAt(i)) == namespaceId) {
+                if (section == null) {
+                    section = new MemoryConfiguration();
+                }
+                section.set(KeyRegistry.key(info.keyAt(i)).getKey(), info.valueAt(i));
+            }
+        }
+        return section;
     }
 
-    void removeInfo(int x, int y, int z) {
-        ensureLoaded();
-        config.set(x + "." + y + "." + z, null);
-        ConfigurationSection section = config.getConfigurationSection(x + "." + y);
+    synchronized void removeInfo(int x, int y, int z) {
+        if (isInPlaceWithout(x, y, z, null, null)) {
+            return;
+        }
+        ChunkSection section = getSection(x, z, false);
         if (section == null) {
             return;
         }
-        if (section.getKeys(false).isEmpty()) {
-            config.set(x + "." + y, null);
-            section = config.getConfigurationSection(String.valueOf(x));
-            if (section != null && section.getKeys(false).isEmpty()) {
-                config.set(String.valueOf(x), null);
+        long position = pack(x, y, z);
+        BlockInfo info = section.remove(position);
+        if (info != null) {
+            for (int i = 0; i < info.size(); i++) {
+                keyIndex.remove(info.keyAt(i), x, y, z);
+                if (isWatched(info.keyAt(i), x, z)) {
+                    publish(info.keyAt(i), x, y, z, null);
+                }
+            }
+            markDirty(section, position);
+            if (journaling && journal != null) {
+                journal.remove(x, y, z);
+            }
+        }
+    }
+
+    synchronized void removeInfo(int x, int y, int z, NamespacedKey key) {
+        int keyId = KeyRegistry.lookup(key);
+        if (keyId < 0 || isInPlaceWithout(x, y, z, key.getNamespace(), key.getKey())) {
+            return;
+        }
+        ChunkSection section = getSection(x, z, false);
+        if (section == null) {
+            return;
+        }
+        long position = pack(x, y, z);
+        BlockInfo info = section.get(position);
+        if (info != null && info.remove(keyId)) {
+            keyIndex.remove(keyId, x, y, z);
+            if (isWatched(keyId, x, z)) {
+                publish(keyId, x, y, z, null);
+            }
+            if (info.isEmpty()) {
+                section.remove(position);
+            }
+            markDirty(section, position);
+            if (journaling && journal != null) {
+                journal.remove(x, y, z, key);
             }
         }
-        modified = true;
     }
 
-    void removeInfo(int x, int z, int y, String key) {
-        ensureLoaded();
-        ConfigurationSection section = config.getConfigurationSection(x + "." + y + "." + z);
+    synchronized void removeInfo(int x, int y, int z, String namespace) {
+        int namespaceId = KeyRegistry.lookupNamespace(namespace);
+        if (namespaceId < 0 || isInPlaceWithout(x, y, z, namespace, null)) {
+            return;
+        }
+        ChunkSection section = getSection(x, z, false);
         if (section == null) {
             return;
         }
-        section.set(key, null);
-        if (section.getKeys(false).isEmpty()) {
-            removeInfo(x, y, z);
+        long position = pack(x, y, z);
+        BlockInfo info = section.get(position);
+        if (info == null) {
+            return;
+        }
+        for (int i = 0; i < info.size(); i++) {
+            if (KeyRegistry.namespace(info.keyAt(i)) == namespaceId) {
+                keyIndex.remove(info.keyAt(i), x, y, z);
+                if (isWatched(info.keyAt(i), x, z)) {
+                    publish(info.keyAt(i), x, y, z, null);
+                }
+            }
+        }
+        if (info.removeNamespace(namespaceId)) {
+            if (info.isEmpty()) {
+                section.remove(position);
+            }
+            markDirty(section, position);
+            if (journaling && journal != null) {
+                journal.removeNamespace(x, y, z, namespace);
+            }
+        }
+    }
+
+    /**
+     * Remove all info of a block and return it so that it can be put onto another block
+     * @param x The X coordinate of the block
+     * @param y The Y coordinate of the block
+     * @param z The Z coordinate of the block
+     * @return The info of the block without expired entries or null if it had none
+     */
+    synchronized BlockInfo takeInfo(int x, int y, int z) {
+        if (isInPlaceWithout(x, y, z, null, null)) {
+            return null;
+        }
+        ChunkSection section = getSection(x, z, false);
+        if (section == null) {
+            return null;
+        }
+        long position = pack(x, y, z);
+        BlockInfo info = section.remove(position);
+        if (info != null) {
+            for (int i = 0; i < info.size(); i++) {
+                keyIndex.remove(info.keyAt(i), x, y, z);
+                if (isWatched(info.keyAt(i), x, z)) {
+                    publish(info.keyAt(i), x, y, z, null);
+                }
+            }
+            markDirty(section, position);
+            if (journaling && journal != null) {
+                journal.remove(x, y, z);
+            }
+            if (info.hasExpiring() && info.removeExpired(System.currentTimeMillis()) && info.isEmpty()) {
+                return null;
+            }
+        }
+        return info;
+    }
+
+    /**
+     * Replace all info of a block with info taken from another block
+     * @param x     The X coordinate of the block
+     * @param y     The Y coordinate of the block
+     * @param z     The Z coordinate of the block
+     * @param info  The info, it must not be used anywhere else anymore
+     */
+    synchronized void putInfo(int x, int y, int z, BlockInfo info) {
+        ChunkSection section = getSection(x, z, true);
+        long position = pack(x, y, z);
+        BlockInfo previous = section.put(position, info);
+        if (previous != null) {
+            for (int i = 0; i < previous.size(); i++) {
+                keyIndex.remove(previous.keyAt(i), x, y, z);
+                if (!info.has(previous.keyAt(i)) && isWatched(previous.keyAt(i), x, z)) {
+                    publish(previous.keyAt(i), x, y, z, null);
+                }
+            }
+        }
+        for (int i = 0; i < info.size(); i++) {
+            keyIndex.add(info.keyAt(i), x, y, z, info.expiryAt(i));
+            if (isWatched(info.keyAt(i), x, z)) {
+                publish(info.keyAt(i), x, y, z, info.valueAt(i));
+            }
+            if (info.expiryAt(i) != 0) {
+                scheduleExpiry(x, y, z, info.expiryAt(i));
+            }
+        }
+        markDirty(section, position);
+        if (journaling && journal != null) {
+            if (previous != null) {
+                journal.remove(x, y, z);
+            }
+            for (int i = 0; i < info.size(); i++) {
+                journal.set(x, y, z, KeyRegistry.key(info.keyAt(i)), info, i);
+            }
+        }
+    }
+
+    /**
+     * Visit all blocks with data inside of a cuboid. Only chunks which have data get read
+     * and only their tagged blocks get checked, the volume of the cuboid doesn't matter.
+     * The consumer is called while holding the region's lock. Blocks with expired entries
+     * are passed as copies without them.
+     * @param minX      The minimum X coordinate, inclusive
+     * @param minY      The minimum Y coordinate, inclusive
+     * @param minZ      The minimum Z coordinate, inclusive
+     * @param maxX      The maximum X coordinate, inclusive
+     * @param maxY      The maximum Y coordinate, inclusive
+     * @param maxZ      The maximum Z coordinate, inclusive
+     * @param consumer  The consumer to call for every block
+     */
+    synchronized void forEachBlock(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, BlockConsumer consumer) {
+        long now = System.currentTimeMillis();
+        forEachSection(minX, minZ, maxX, maxZ, section -> section.forEach((position, info) -> {
+            int x = unpackX(position);
+            int y = unpackY(position);
+            int z = unpackZ(position);
+            if (x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ) {
+                BlockInfo visible = info;
+                if (info.hasExpired(now)) {
+                    // The section can't be modified while iterating it, the entries get dropped later
+                    visible = info.copy();
+                    visible.removeExpired(now);
+                }
+                if (!visible.isEmpty()) {
+                    consumer.accept(x, y, z, visible);
+                }
+            }
+        }));
+    }
+
+    /**
+     * Remove the info of all blocks inside of a cuboid
+     * @param minX      The minimum X coordinate, inclusive
+     * @param minY      The minimum Y coordinate, inclusive
+     * @param minZ      The minimum Z coordinate, inclusive
+     * @param maxX      The maximum X coordinate, inclusive
+     * @param maxY      The maximum Y coordinate, inclusive
+     * @param maxZ      The maximum Z coordinate, inclusive
+     * @param key       The key to remove or null to remove all info
+     * @return The amount of blocks that had info removed
+     */
+    synchronized int removeInfo(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, NamespacedKey key) {
+        int keyId = key != null ? KeyRegistry.lookup(key) : -1;
+        if (key != null && keyId < 0) {
+            return 0;
+        }
+        int[] removed = new int[1];
+        forEachSection(minX, minZ, maxX, maxZ, section -> {
+            long[] positions = new long[section.size()];
+            int[] count = new int[1];
+            section.forEach((position, info) -> {
+                int y = unpackY(position);
+                int x = unpackX(position);
+                int z = unpackZ(position);
+                if (x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ
+                        && (keyId < 0 || info.has(keyId))) {
+                    positions[count[0]++] = position;
+                }
+            });
+            for (int i = 0; i < count[0]; i++) {
+                int x = unpackX(positions[i]);
+                int y = unpackY(positions[i]);
+                int z = unpackZ(positions[i]);
+                markDirty(section, positions[i]);
+                if (keyId < 0) {
+                    BlockInfo info = section.remove(positions[i]);
+                    for (int j = 0; j < info.size(); j++) {
+                        keyIndex.remove(info.keyAt(j), x, y, z);
+                        if (isWatched(info.keyAt(j), x, z)) {
+                            publish(info.keyAt(j), x, y, z, null);
+                        }
+                    }
+                    if (journaling && journal != null) {
+                        journal.remove(x, y, z);
+                    }
+                } else {
+                    BlockInfo info = section.get(positions[i]);
+                    info.remove(keyId);
+                    keyIndex.remove(keyId, x, y, z);
+                    if (isWatched(keyId, x, z)) {
+                        publish(keyId, x, y, z, null);
+                    }
+                    if (info.isEmpty()) {
+                        section.remove(positions[i]);
+                    }
+                    if (journaling && journal != null) {
+                        journal.remove(x, y, z, key);
+                    }
+                }
+            }
+            removed[0] += count[0];
+        });
+        return removed[0];
+    }
+
+    private void forEachSection(int minX, int minZ, int maxX, int maxZ, Consumer<ChunkSection> consumer) {
+        int fromX = Math.max(minX, location.x << 9);
+        int toX = Math.min(maxX, (location.x << 9) + 511);
+        int fromZ = Math.max(minZ, location.z << 9);
+        int toZ = Math.min(maxZ, (location.z << 9) + 511);
+        if (fromX > toX || fromZ > toZ) {
+            return;
+        }
+        for (int chunkX = fromX >> 4; chunkX <= toX >> 4; chunkX++) {
+            for (int chunkZ = fromZ >> 4; chunkZ <= toZ >> 4; chunkZ++) {
+                if (isPresent(RegionFile.chunkIndex(chunkX << 4, chunkZ << 4))) {
+                    ChunkSection section = getSection(chunkX << 4, chunkZ << 4, false);
+                    if (section != null) {
+                        consumer.accept(section);
+                    }
+                }
+            }
         }
-        modified = true;
     }
 
     Location getLocation() {
         return location;
     }
 
+    interface BlockConsumer {
+        void accept(int x, int y, int z, BlockInfo info);
+    }
+
+    /**
+     * A copy of a region's modified data which can be written without holding the region's lock
+     */
+    static class Snapshot {
+        private final Location location;
+        private final StorageBackend.Stored stored;
+        private final boolean[] unchanged = new boolean[RegionFile.CHUNKS];
+        private final long[][] positions = new long[RegionFile.CHUNKS][];
+        private final BlockInfo[][] infos = new BlockInfo[RegionFile.CHUNKS][];
+
+        private Snapshot(Location location, StorageBackend.Stored stored) {
+            this.location = location;
+            this.stored = stored;
+        }
+
+        /**
+         * Get the data that was stored when the snapshot was taken
+         * @return The stored data or null if there was none
+         */
+        StorageBackend.Stored getStored() {
+            return stored;
+        }
+
+        /**
+         * Check whether or not a chunk has stored data which wasn't modified
+         * @param chunk The index of the chunk in the region
+         * @return true if the stored data of the chunk is still up to date
+         */
+        boolean isUnchanged(int chunk) {
+            return unchanged[chunk];
+        }
+
+        /**
+         * Visit the blocks of a modified chunk
+         * @param chunk     The index of the chunk in the region
+         * @param consumer  The consumer to call for every block, the info is null if the block's info got removed
+         * @throws IOException When the consumer throws it
+         */
+        void forEachBlock(int chunk, BlockWriter consumer) throws IOException {
+            long[] chunkPositions = positions[chunk];
+            if (chunkPositions == null) {
+                return;
+            }
+            for (int i = 0; i < chunkPositions.length; i++) {
+                long position = chunkPositions[i];
+                int x = (location.x << 9) + (int) (position >> 9 & 511);
+                int z = (location.z << 9) + (int) (position & 511);
+                consumer.accept(x, (int) (position >> 18), z, infos[chunk][i]);
+            }
+        }
+
+        /**
+         * Get the amount of entries that are contained in the snapshot
+         * @return The amount of entries of all blocks
+         */
+        int getEntries() {
+            int entries = 0;
+            for (BlockInfo[] chunkInfos : infos) {
+                if (chunkInfos != null) {
+                    for (BlockInfo info : chunkInfos) {
+                        if (info != null) {
+                            entries += info.size();
+                        }
+                    }
+                }
+            }
+            return entries;
+        }
+
+        interface BlockWriter {
+            void accept(int x, int y, int z, BlockInfo info) throws IOException;
+        }
+    }
+
     static class Location {
         private final UUID worldId;
         private final int x;
@@ -182,6 +1111,23 @@ class Region {
             return result;
         }
 
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Location location = (Location) o;
+            return x == location.x && z == location.z && worldId.equals(location.worldId);
+        }
+
+        @Override
+        public String toString() {
+            return "Location{worldId=" + worldId + ", x=" + x + ", z=" + z + "}";
+        }
+
         public UUID getWorldId() {
             return worldId;
         }
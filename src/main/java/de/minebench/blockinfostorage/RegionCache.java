@@ -0,0 +1,196 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Holds the loaded regions. Regions stay cached while any of their chunks is loaded,
+ * regions without loaded chunks get evicted in least recently used order once the
+ * estimated memory of all cached regions exceeds the budget.
+ */
+class RegionCache {
+
+    private final Map<Region.Location, Region> regions = new ConcurrentHashMap<>();
+    private final Map<Region.Location, long[]> loadedChunks = new ConcurrentHashMap<>();
+    private final RegionWriter writer;
+
+    private final long memoryBudget;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Create a new cache
+     * @param writer        The writer to save evicted regions with
+     * @param memoryBudget  The maximum estimated memory in bytes
+     */
+    RegionCache(RegionWriter writer, long memoryBudget) {
+        this.writer = writer;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Get a cached region and mark it as used
+     * @param location  The location of the region
+     * @return The region or null if it isn't cached
+     */
+    Region get(Region.Location location) {
+        Region region = regions.get(location);
+        if (region != null) {
+            hits.increment();
+            region.touch();
+        } else {
+            misses.increment();
+        }
+        return region;
+    }
+
+    /**
+     * Get a cached region without counting it as a cache access
+     * @param location  The location of the region
+     * @return The region or null if it isn't cached
+     */
+    Region peek(Region.Location location) {
+        return regions.get(location);
+    }
+
+    void put(Region.Location location, Region region) {
+        region.touch();
+        regions.put(location, region);
+    }
+
+    /**
+     * Get all cached regions
+     * @return A view of the cached regions
+     */
+    Collection<Region> getRegions() {
+        return regions.values();
+    }
+
+    /**
+     * Remove all regions of a world from the cache and save them
+     * @param worldId The ID of the world
+     */
+    void unloadWorld(UUID worldId) {
+        regions.entrySet().removeIf(e -> {
+            if (e.getKey().getWorldId().equals(worldId)) {
+                e.getValue().evict(writer);
+                writer.save(e.getValue());
+                return true;
+            }
+            return false;
+        });
+        loadedChunks.keySet().removeIf(location -> location.getWorldId().equals(worldId));
+    }
+
+    /**
+     * Mark a chunk as loaded, its region will not be evicted while it is loaded
+     * @param location  The location of the chunk's region
+     * @param chunkX    The X coordinate of the chunk
+     * @param chunkZ    The Z coordinate of the chunk
+     */
+    void chunkLoaded(Region.Location location, int chunkX, int chunkZ) {
+        int chunk = RegionFile.chunkIndex(chunkX << 4, chunkZ << 4);
+        long[] bits = loadedChunks.computeIfAbsent(location, l -> new long[RegionFile.CHUNKS / 64]);
+        synchronized (bits) {
+            bits[chunk >> 6] |= 1L << chunk;
+        }
+    }
+
+    /**
+     * Mark a chunk as unloaded
+     * @param location  The location of the chunk's region
+     * @param chunkX    The X coordinate of the chunk
+     * @param chunkZ    The Z coordinate of the chunk
+     */
+    void chunkUnloaded(Region.Location location, int chunkX, int chunkZ) {
+        int chunk = RegionFile.chunkIndex(chunkX << 4, chunkZ << 4);
+        loadedChunks.computeIfPresent(location, (l, bits) -> {
+            synchronized (bits) {
+                bits[chunk >> 6] &= ~(1L << chunk);
+                for (long word : bits) {
+                    if (word != 0) {
+                        return bits;
+                    }
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Check whether or not a region has any loaded chunks
+     * @param location  The location of the region
+     * @return true if at least one chunk is loaded
+     */
+    boolean hasLoadedChunks(Region.Location location) {
+        return loadedChunks.containsKey(location);
+    }
+
+    /**
+     * Evict the least recently used regions without loaded chunks until the
+     * estimated memory usage is below the budget. Evicted regions get saved.
+     */
+    void evict() {
+        long total = 0;
+        List<Region> candidates = new ArrayList<>();
+        for (Region region : regions.values()) {
+            total += region.estimateMemory();
+            if (!hasLoadedChunks(region.getLocation())) {
+                candidates.add(region);
+            }
+        }
+        if (total <= memoryBudget) {
+            return;
+        }
+        candidates.sort(Comparator.comparingLong(Region::getLastAccess));
+        for (Region region : candidates) {
+            if (total <= memoryBudget) {
+                break;
+            }
+            if (!hasLoadedChunks(region.getLocation()) && regions.remove(region.getLocation(), region)) {
+                region.evict(writer);
+                writer.save(region);
+                total -= region.estimateMemory();
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Get the current statistics of this cache
+     * @return The statistics
+     */
+    CacheStats getStats() {
+        long memory = 0;
+        for (Region region : regions.values()) {
+            memory += region.estimateMemory();
+        }
+        return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), regions.size(), memory, memoryBudget);
+    }
+}
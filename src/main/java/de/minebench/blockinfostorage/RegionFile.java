@@ -0,0 +1,1122 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The binary region file format.
+ * <pre>
+ * int     magic
+ * int     version
+ * int     string table offset
+ * int     string table length
+ * 1024 x  (int offset, int length) of the chunk payloads, 0 length if a chunk has no data
+ * ...     chunk payloads
+ * ...     string table: varint count, count x string
+ * </pre>
+ * A chunk payload is a varint block count followed by the blocks. Each block starts with
+ * a byte holding the chunk-relative X (high nibble) and Z (low nibble), the zig-zag varint Y and
+ * the varint entry count. Every entry consists of the string table indices of the namespace and
+ * the key as varints followed by a tagged value. Values of plugin-defined types are stored with the
+ * id of their {@link BlockInfoCodec} and the length of the encoded bytes so that they can be
+ * kept unchanged while the codec isn't registered. Values which expire are prefixed with a tag
+ * and the long timestamp of their expiry.
+ * <p>
+ * Since version 2 every chunk payload starts with a byte for its compression. Deflated payloads
+ * continue with the varint length of the uncompressed payload followed by the deflated data.
+ * Files of version 1 have no compression byte and can still be read.
+ */
+final class RegionFile {
+
+    static final int MAGIC = 0x42495346; // "BISF"
+    static final int VERSION = 2;
+
+    static final int CHUNKS = 32 * 32;
+    static final int HEADER_SIZE = 4 * 4 + CHUNKS * 2 * 4;
+
+    private static final byte TAG_STRING = 1;
+    private static final byte TAG_INT = 2;
+    private static final byte TAG_LONG = 3;
+    private static final byte TAG_DOUBLE = 4;
+    private static final byte TAG_FLOAT = 5;
+    private static final byte TAG_BOOLEAN = 6;
+    private static final byte TAG_BYTE = 7;
+    private static final byte TAG_SHORT = 8;
+    private static final byte TAG_UUID = 9;
+    private static final byte TAG_LIST = 10;
+    private static final byte TAG_MAP = 11;
+    private static final byte TAG_YAML = 12;
+    private static final byte TAG_BYTES = 13;
+    private static final byte TAG_CODEC = 14;
+    private static final byte TAG_EXPIRING = 15;
+
+    private static final byte COMPRESSION_NONE = 0;
+    private static final byte COMPRESSION_DEFLATE = 1;
+
+    private RegionFile() {}
+
+    /**
+     * Get the index of a chunk in the chunk offset table
+     * @param blockX The X coordinate of a block in the chunk
+     * @param blockZ The Z coordinate of a block in the chunk
+     * @return The index of the chunk in its region
+     */
+    static int chunkIndex(int blockX, int blockZ) {
+        return ((blockZ >> 4) & 31) << 5 | ((blockX >> 4) & 31);
+    }
+
+    /**
+     * Read the header of a region file
+     * @param file  The file to read
+     * @return The header with the chunk offset table and the string table
+     * @throws IOException When the file could not be read or is no valid region file
+     */
+    static Header readHeader(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] headerData = new byte[HEADER_SIZE];
+            raf.readFully(headerData);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(headerData));
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a block info region file!");
+            }
+            int version = in.readInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException(file + " has unsupported version " + version + "!");
+            }
+            int stringsOffset = in.readInt();
+            int stringsLength = in.readInt();
+            int[] offsets = new int[CHUNKS];
+            int[] lengths = new int[CHUNKS];
+            for (int chunk = 0; chunk < CHUNKS; chunk++) {
+                offsets[chunk] = in.readInt();
+                lengths[chunk] = in.readInt();
+            }
+
+            byte[] stringData = new byte[stringsLength];
+            raf.seek(stringsOffset);
+            raf.readFully(stringData);
+            return new Header(version, offsets, lengths, readStrings(new DataInputStream(new ByteArrayInputStream(stringData))));
+        }
+    }
+
+    /**
+     * Read all entries of a region file
+     * @param file      The file to read
+     * @param regionX   The X coordinate of the region
+     * @param regionZ   The Z coordinate of the region
+     * @param consumer  The consumer to pass the entries to
+     * @throws IOException When the file could not be read or is no valid region file
+     */
+    static void read(File file, int regionX, int regionZ, EntryConsumer consumer) throws IOException {
+        Header header = readHeader(file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            for (int chunk = 0; chunk < CHUNKS; chunk++) {
+                if (header.hasChunk(chunk)) {
+                    readChunk(raf, header, chunk, regionX, regionZ, consumer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read all entries of a legacy YAML region file
+     * @param file      The file to read
+     * @param consumer  The consumer to pass the entries to
+     * @throws IOException When the consumer throws it
+     */
+    static void readLegacy(File file, EntryConsumer consumer) throws IOException {
+        Yaml.readLegacy(file, consumer);
+    }
+
+    /**
+     * Read the entries of a single chunk
+     * @param raf       The region file to read from
+     * @param header    The header of the region file
+     * @param chunk     The index of the chunk in the region
+     * @param regionX   The X coordinate of the region
+     * @param regionZ   The Z coordinate of the region
+     * @param consumer  The consumer to pass the entries to
+     * @throws IOException When the chunk could not be read
+     */
+    static void readChunk(RandomAccessFile raf, Header header, int chunk, int regionX, int regionZ, EntryConsumer consumer) throws IOException {
+        int baseX = (regionX << 9) + ((chunk & 31) << 4);
+        int baseZ = (regionZ << 9) + ((chunk >> 5) << 4);
+        byte[] payload = readRawChunk(raf, header, chunk);
+        readPayload(new DataInputStream(payload(ByteBuffer.wrap(payload), 0, payload.length, header)), header.strings, baseX, baseZ, consumer);
+    }
+
+    /**
+     * Read the raw payload of a chunk as it is stored in the file, it might be compressed
+     * @param raf       The region file to read from
+     * @param header    The header of the region file
+     * @param chunk     The index of the chunk in the region
+     * @return The payload bytes
+     * @throws IOException When the chunk could not be read
+     */
+    static byte[] readRawChunk(RandomAccessFile raf, Header header, int chunk) throws IOException {
+        byte[] payload = new byte[header.lengths[chunk]];
+        raf.seek(header.offsets[chunk]);
+        raf.readFully(payload);
+        return payload;
+    }
+
+    /**
+     * Map a region file into memory so that its chunks can be read in place
+     * @param file  The file to map
+     * @return A read-only mapping of the whole file
+     * @throws IOException When the file could not be mapped
+     */
+    static ByteBuffer map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Read the entries of a single chunk from a mapped region file
+     * @param mapping   The mapped region file
+     * @param header    The header of the region file
+     * @param chunk     The index of the chunk in the region
+     * @param regionX   The X coordinate of the region
+     * @param regionZ   The Z coordinate of the region
+     * @param consumer  The consumer to pass the entries to
+     * @throws IOException When the chunk could not be read
+     */
+    static void readChunk(ByteBuffer mapping, Header header, int chunk, int regionX, int regionZ, EntryConsumer consumer) throws IOException {
+        int baseX = (regionX << 9) + ((chunk & 31) << 4);
+        int baseZ = (regionZ << 9) + ((chunk >> 5) << 4);
+        readPayload(chunkInput(mapping, header, chunk), header.strings, baseX, baseZ, consumer);
+    }
+
+    /**
+     * Read the entries of a single block from a mapped region file in place. Other blocks of the
+     * chunk and entries which don't match the filter get skipped without decoding their values.
+     * @param mapping   The mapped region file
+     * @param header    The header of the region file
+     * @param x         The X coordinate of the block
+     * @param y         The Y coordinate of the block
+     * @param z         The Z coordinate of the block
+     * @param namespace The namespace of the entries to read, null to read all entries
+     * @param key       The key of the entries to read, null to read all entries of the namespace
+     * @param consumer  The consumer to pass the matching entries to, null to only check for them
+     * @return Whether or not the block has a matching entry
+     * @throws IOException When the chunk could not be read
+     */
+    static boolean readBlock(ByteBuffer mapping, Header header, int x, int y, int z, String namespace, String key, EntryConsumer consumer) throws IOException {
+        int chunk = chunkIndex(x, z);
+        if (!header.hasChunk(chunk)) {
+            return false;
+        }
+        DataInput in = chunkInput(mapping, header, chunk);
+        int position = (x & 15) << 4 | (z & 15);
+        int blocks = readVarInt(in);
+        for (int i = 0; i < blocks; i++) {
+            int xz = in.readUnsignedByte();
+            int blockY = readSignedVarInt(in);
+            boolean match = xz == position && blockY == y;
+            int entries = readVarInt(in);
+            boolean found = false;
+            for (int j = 0; j < entries; j++) {
+                String entryNamespace = header.strings[readVarInt(in)];
+                String entryKey = header.strings[readVarInt(in)];
+                if (match && (namespace == null || namespace.equals(entryNamespace)) && (key == null || key.equals(entryKey))) {
+                    if (consumer == null) {
+                        return true;
+                    }
+                    found = true;
+                    consumer.accept(x, y, z, entryNamespace, entryKey, readValue(in));
+                } else {
+                    skipValue(in);
+                }
+            }
+            if (match) {
+                // Every block is only stored once per chunk
+                return found;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read the entries of a chunk payload without decoding their values. This doesn't need any
+     * of the types of the values to be available and checks that the whole payload is valid.
+     * @param payload   The raw payload of the chunk
+     * @param header    The header of the region file
+     * @param chunk     The index of the chunk in the region
+     * @param regionX   The X coordinate of the region
+     * @param regionZ   The Z coordinate of the region
+     * @param consumer  The consumer to pass the entries with their encoded values to
+     * @throws IOException When the payload is invalid
+     */
+    static void readRawEntries(byte[] payload, Header header, int chunk, int regionX, int regionZ, EntryConsumer consumer) throws IOException {
+        int baseX = (regionX << 9) + ((chunk & 31) << 4);
+        int baseZ = (regionZ << 9) + ((chunk >> 5) << 4);
+        BufferInputStream stream = payload(ByteBuffer.wrap(payload), 0, payload.length, header);
+        DataInputStream in = new DataInputStream(stream);
+        int blocks = readVarInt(in);
+        for (int i = 0; i < blocks; i++) {
+            int xz = in.readUnsignedByte();
+            int x = baseX + (xz >> 4);
+            int z = baseZ + (xz & 15);
+            int y = readSignedVarInt(in);
+            int entries = readVarInt(in);
+            for (int j = 0; j < entries; j++) {
+                String namespace = readStringRef(in, header.strings);
+                String key = readStringRef(in, header.strings);
+                int start = stream.position;
+                skipValue(in);
+                consumer.accept(x, y, z, namespace, key, stream.copy(start, stream.position));
+            }
+        }
+        if (stream.available() > 0) {
+            throw new IOException("Chunk " + chunk + " has " + stream.available() + " unexpected trailing bytes");
+        }
+    }
+
+    private static String readStringRef(DataInput in, String[] strings) throws IOException {
+        int index = readVarInt(in);
+        if (index < 0 || index >= strings.length) {
+            throw new IOException("String index " + index + " is outside of the string table with " + strings.length + " strings");
+        }
+        return strings[index];
+    }
+
+    private static DataInputStream chunkInput(ByteBuffer mapping, Header header, int chunk) throws IOException {
+        return new DataInputStream(payload(mapping, header.offsets[chunk], header.lengths[chunk], header));
+    }
+
+    /**
+     * Get the uncompressed payload of a chunk. Uncompressed payloads get read in place.
+     * @param data      The data which contains the stored payload
+     * @param offset    The offset of the stored payload in the data
+     * @param length    The length of the stored payload
+     * @param header    The header of the region file that the payload is from
+     * @return A stream over the uncompressed payload
+     * @throws IOException When the payload could not be decompressed
+     */
+    private static BufferInputStream payload(ByteBuffer data, int offset, int length, Header header) throws IOException {
+        if (header.version < 2) {
+            return new BufferInputStream(data, offset, length);
+        }
+        if (length < 1) {
+            throw new EOFException();
+        }
+        byte compression = data.get(offset);
+        switch (compression) {
+            case COMPRESSION_NONE:
+                return new BufferInputStream(data, offset + 1, length - 1);
+            case COMPRESSION_DEFLATE:
+                BufferInputStream in = new BufferInputStream(data, offset + 1, length - 1);
+                int plainLength = readVarInt(new DataInputStream(in));
+                byte[] compressed = in.copy(in.position, in.end);
+                byte[] plain = new byte[plainLength];
+                Inflater inflater = new Inflater();
+                try {
+                    inflater.setInput(compressed);
+                    int read = 0;
+                    while (read < plainLength) {
+                        int inflated = inflater.inflate(plain, read, plainLength - read);
+                        if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                            throw new EOFException("Compressed payload is shorter than " + plainLength + " bytes");
+                        }
+                        read += inflated;
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("Invalid compressed payload", e);
+                } finally {
+                    inflater.end();
+                }
+                return new BufferInputStream(ByteBuffer.wrap(plain), 0, plainLength);
+            default:
+                throw new IOException("Unknown chunk compression " + compression);
+        }
+    }
+
+    private static String[] readStrings(DataInput in) throws IOException {
+        String[] strings = new String[readVarInt(in)];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = readString(in);
+        }
+        return strings;
+    }
+
+    private static void readPayload(DataInput in, String[] strings, int baseX, int baseZ, EntryConsumer consumer) throws IOException {
+        int blocks = readVarInt(in);
+        for (int i = 0; i < blocks; i++) {
+            int xz = in.readUnsignedByte();
+            int x = baseX + (xz >> 4);
+            int z = baseZ + (xz & 15);
+            int y = readSignedVarInt(in);
+            int entries = readVarInt(in);
+            for (int j = 0; j < entries; j++) {
+                String namespace = strings[readVarInt(in)];
+                String key = strings[readVarInt(in)];
+                consumer.accept(x, y, z, namespace, key, readValue(in));
+            }
+        }
+    }
+
+    static Object readValue(DataInput in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case TAG_STRING:
+                return readString(in);
+            case TAG_INT:
+                return readSignedVarInt(in);
+            case TAG_LONG:
+                return in.readLong();
+            case TAG_DOUBLE:
+                return in.readDouble();
+            case TAG_FLOAT:
+                return in.readFloat();
+            case TAG_BOOLEAN:
+                return in.readBoolean();
+            case TAG_BYTE:
+                return in.readByte();
+            case TAG_SHORT:
+                return in.readShort();
+            case TAG_UUID:
+                return new UUID(in.readLong(), in.readLong());
+            case TAG_LIST:
+                int size = readVarInt(in);
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in));
+                }
+                return list;
+            case TAG_MAP:
+                size = readVarInt(in);
+                Map<String, Object> map = new LinkedHashMap<>();
+                for (int i = 0; i < size; i++) {
+                    map.put(readString(in), readValue(in));
+                }
+                return map;
+            case TAG_YAML:
+                return Yaml.deserialize(readString(in));
+            case TAG_BYTES:
+                byte[] bytes = new byte[readVarInt(in)];
+                in.readFully(bytes);
+                return bytes;
+            case TAG_CODEC:
+                String codecId = readString(in);
+                bytes = new byte[readVarInt(in)];
+                in.readFully(bytes);
+                EncodedValue encoded = new EncodedValue(codecId, bytes);
+                Object decoded = encoded.decode();
+                return decoded != null ? decoded : encoded;
+            case TAG_EXPIRING:
+                return new ExpiringValue(in.readLong(), readValue(in));
+            default:
+                throw new IOException("Unknown value tag " + tag);
+        }
+    }
+
+    private static void skipValue(DataInput in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case TAG_STRING:
+            case TAG_YAML:
+            case TAG_BYTES:
+                skip(in, readVarInt(in));
+                break;
+            case TAG_INT:
+                readVarInt(in);
+                break;
+            case TAG_LONG:
+            case TAG_DOUBLE:
+                skip(in, 8);
+                break;
+            case TAG_FLOAT:
+                skip(in, 4);
+                break;
+            case TAG_BOOLEAN:
+            case TAG_BYTE:
+                skip(in, 1);
+                break;
+            case TAG_SHORT:
+                skip(in, 2);
+                break;
+            case TAG_UUID:
+                skip(in, 16);
+                break;
+            case TAG_LIST:
+                int size = readVarInt(in);
+                for (int i = 0; i < size; i++) {
+                    skipValue(in);
+                }
+                break;
+            case TAG_MAP:
+                size = readVarInt(in);
+                for (int i = 0; i < size; i++) {
+                    skip(in, readVarInt(in));
+                    skipValue(in);
+                }
+                break;
+            case TAG_CODEC:
+                skip(in, readVarInt(in));
+                skip(in, readVarInt(in));
+                break;
+            case TAG_EXPIRING:
+                skip(in, 8);
+                skipValue(in);
+                break;
+            default:
+                throw new IOException("Unknown value tag " + tag);
+        }
+    }
+
+    private static void skip(DataInput in, int bytes) throws IOException {
+        if (in.skipBytes(bytes) != bytes) {
+            throw new EOFException();
+        }
+    }
+
+    /**
+     * Write the value of a block's entry, primitive values get written without boxing them
+     * @param out   The output to write to
+     * @param info  The block's info
+     * @param i     The index of the entry
+     * @throws IOException When the value could not be written
+     */
+    static void writeValue(DataOutput out, BlockInfo info, int i) throws IOException {
+        if (info.expiryAt(i) != 0) {
+            out.writeByte(TAG_EXPIRING);
+            out.writeLong(info.expiryAt(i));
+        }
+        switch (info.typeAt(i)) {
+            case BlockInfo.TYPE_INT:
+                out.writeByte(TAG_INT);
+                writeSignedVarInt(out, (int) info.bitsAt(i));
+                break;
+            case BlockInfo.TYPE_LONG:
+                out.writeByte(TAG_LONG);
+                out.writeLong(info.bitsAt(i));
+                break;
+            case BlockInfo.TYPE_DOUBLE:
+                out.writeByte(TAG_DOUBLE);
+                out.writeLong(info.bitsAt(i));
+                break;
+            case BlockInfo.TYPE_BOOLEAN:
+                out.writeByte(TAG_BOOLEAN);
+                out.writeBoolean(info.bitsAt(i) != 0);
+                break;
+            case BlockInfo.TYPE_UUID:
+                out.writeByte(TAG_UUID);
+                out.writeLong(info.bitsAt(i));
+                out.writeLong(info.bits2At(i));
+                break;
+            default:
+                writeValue(out, info.objectAt(i));
+        }
+    }
+
+    static void writeValue(DataOutput out, Object value) throws IOException {
+        if (value instanceof String) {
+            out.writeByte(TAG_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TAG_INT);
+            writeSignedVarInt(out, (Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TAG_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(TAG_DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            out.writeByte(TAG_FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(TAG_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Byte) {
+            out.writeByte(TAG_BYTE);
+            out.writeByte((Byte) value);
+        } else if (value instanceof Short) {
+            out.writeByte(TAG_SHORT);
+            out.writeShort((Short) value);
+        } else if (value instanceof UUID) {
+            out.writeByte(TAG_UUID);
+            out.writeLong(((UUID) value).getMostSignificantBits());
+            out.writeLong(((UUID) value).getLeastSignificantBits());
+        } else if (value instanceof List) {
+            out.writeByte(TAG_LIST);
+            writeVarInt(out, ((List<?>) value).size());
+            for (Object o : (List<?>) value) {
+                writeValue(out, o);
+            }
+        } else if (value instanceof Map && hasStringKeys((Map<?, ?>) value)) {
+            out.writeByte(TAG_MAP);
+            writeVarInt(out, ((Map<?, ?>) value).size());
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                writeString(out, (String) entry.getKey());
+                writeValue(out, entry.getValue());
+            }
+        } else if (value instanceof byte[]) {
+            out.writeByte(TAG_BYTES);
+            writeVarInt(out, ((byte[]) value).length);
+            out.write((byte[]) value);
+        } else if (value instanceof ExpiringValue) {
+            out.writeByte(TAG_EXPIRING);
+            out.writeLong(((ExpiringValue) value).getExpiresAt());
+            writeValue(out, ((ExpiringValue) value).getValue());
+        } else if (value instanceof EncodedValue) {
+            out.writeByte(TAG_CODEC);
+            writeString(out, ((EncodedValue) value).getCodecId());
+            writeVarInt(out, ((EncodedValue) value).getData().length);
+            out.write(((EncodedValue) value).getData());
+        } else if (CodecRegistry.forValue(value) != null) {
+            CodecRegistry.Entry<?> codec = CodecRegistry.forValue(value);
+            byte[] data = codec.encode(value);
+            out.writeByte(TAG_CODEC);
+            writeString(out, codec.getId());
+            writeVarInt(out, data.length);
+            out.write(data);
+        } else {
+            // Everything else (e.g. ConfigurationSerializable objects) gets serialized by Bukkit
+            out.writeByte(TAG_YAML);
+            writeString(out, Yaml.serialize(value));
+        }
+    }
+
+    /**
+     * Get the expiry of a value which was read without decoding it
+     * @param value The encoded value
+     * @return The timestamp of its expiry in milliseconds or 0 if it doesn't expire
+     */
+    static long getExpiry(byte[] value) {
+        return value.length > 8 && value[0] == TAG_EXPIRING ? ByteBuffer.wrap(value, 1, 8).getLong() : 0;
+    }
+
+    private static boolean hasStringKeys(Map<?, ?> map) {
+        for (Object key : map.keySet()) {
+            if (!(key instanceof String)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeString(DataOutput out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("VarInt is too big");
+    }
+
+    static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readSignedVarInt(DataInput in) throws IOException {
+        int value = readVarInt(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static void writeSignedVarInt(DataOutput out, int value) throws IOException {
+        writeVarInt(out, (value << 1) ^ (value >> 31));
+    }
+
+    /**
+     * Everything that needs the Bukkit API. This is kept out of the region file class itself so that
+     * binary files without serialized values can be read when the Bukkit API isn't on the class path.
+     */
+    private static class Yaml {
+
+        private static void readLegacy(File file, EntryConsumer consumer) throws IOException {
+            ConfigurationSection config = YamlConfiguration.loadConfiguration(file);
+            for (String x : config.getKeys(false)) {
+                ConfigurationSection xSection = config.getConfigurationSection(x);
+                if (xSection == null) {
+                    continue;
+                }
+                for (String y : xSection.getKeys(false)) {
+                    ConfigurationSection ySection = xSection.getConfigurationSection(y);
+                    if (ySection == null) {
+                        continue;
+                    }
+                    for (String z : ySection.getKeys(false)) {
+                        ConfigurationSection block = ySection.getConfigurationSection(z);
+                        if (block == null) {
+                            continue;
+                        }
+                        for (String namespace : block.getKeys(false)) {
+                            ConfigurationSection namespaceSection = block.getConfigurationSection(namespace);
+                            if (namespaceSection == null) {
+                                continue;
+                            }
+                            for (Map.Entry<String, Object> entry : namespaceSection.getValues(true).entrySet()) {
+                                if (!(entry.getValue() instanceof ConfigurationSection)) {
+                                    consumer.accept(Integer.parseInt(x), Integer.parseInt(y), Integer.parseInt(z),
+                                            namespace, entry.getKey(), entry.getValue());
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        private static Object deserialize(String serialized) throws IOException {
+            YamlConfiguration config = new YamlConfiguration();
+            try {
+                config.loadFromString(serialized);
+            } catch (InvalidConfigurationException e) {
+                throw new IOException("Invalid serialized value", e);
+            }
+            return config.get("v");
+        }
+
+        private static String serialize(Object value) {
+            YamlConfiguration config = new YamlConfiguration();
+            config.set("v", value);
+            return config.saveToString();
+        }
+    }
+
+    /**
+     * Consumes the entries read from a region file
+     */
+    interface EntryConsumer {
+        void accept(int x, int y, int z, String namespace, String key, Object value) throws IOException;
+    }
+
+    /**
+     * Reads a part of a mapped file with absolute reads so that the buffer can be shared between threads
+     */
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+        private final int end;
+        private int position;
+
+        private BufferInputStream(ByteBuffer buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        @Override
+        public int read() {
+            return position < end ? buffer.get(position++) & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+            int read = Math.min(len, end - position);
+            for (int i = 0; i < read; i++) {
+                b[off + i] = buffer.get(position++);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return end - position;
+        }
+
+        /**
+         * Copy a part of the underlying buffer
+         * @param from  The absolute start position, inclusive
+         * @param to    The absolute end position, exclusive
+         * @return The copied bytes
+         */
+        private byte[] copy(int from, int to) {
+            byte[] bytes = new byte[to - from];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(from + i);
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * The header of a region file
+     */
+    static class Header {
+        private final int version;
+        private final int[] offsets;
+        private final int[] lengths;
+        private final String[] strings;
+
+        private Header(int version, int[] offsets, int[] lengths, String[] strings) {
+            this.version = version;
+            this.offsets = offsets;
+            this.lengths = lengths;
+            this.strings = strings;
+        }
+
+        /**
+         * Check whether or not the file contains data for a chunk
+         * @param chunk The index of the chunk in the region
+         * @return true if there is data for the chunk
+         */
+        boolean hasChunk(int chunk) {
+            return lengths[chunk] > 0;
+        }
+
+        /**
+         * Get the length of a chunk's payload
+         * @param chunk The index of the chunk in the region
+         * @return The length in bytes, 0 if there is no data for the chunk
+         */
+        int getLength(int chunk) {
+            return lengths[chunk];
+        }
+
+        /**
+         * Get the position of a chunk's payload in the file
+         * @param chunk The index of the chunk in the region
+         * @return The offset in bytes
+         */
+        int getOffset(int chunk) {
+            return offsets[chunk];
+        }
+
+        String[] getStrings() {
+            return strings;
+        }
+
+        int getVersion() {
+            return version;
+        }
+    }
+
+    /**
+     * Collects blocks chunk by chunk and writes them into a region file
+     */
+    static class Writer {
+        private final byte[][] rawChunks = new byte[CHUNKS][];
+        private final ByteArrayOutputStream[] chunkData = new ByteArrayOutputStream[CHUNKS];
+        private final DataOutputStream[] chunkOut = new DataOutputStream[CHUNKS];
+        private final int[] blockCounts = new int[CHUNKS];
+        private final Map<String, Integer> stringIds = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+        private final Header source;
+        private final int compressionLevel;
+
+        private DataOutputStream current = null;
+
+        /**
+         * Create a writer for a new file
+         * @param compressionLevel  The Deflate level (1-9) to compress the chunks with, 0 to
+         *                          not compress them or -1 for the default level
+         */
+        Writer(int compressionLevel) {
+            this(null, compressionLevel);
+        }
+
+        /**
+         * Create a writer which keeps the string table of an existing file. This allows
+         * copying the raw payloads of that file's chunks via {@link #rawChunk(int, byte[])}.
+         * @param source            The header of the existing file, null if there is none
+         * @param compressionLevel  The Deflate level (1-9) to compress the chunks with, 0 to
+         *                          not compress them or -1 for the default level
+         */
+        Writer(Header source, int compressionLevel) {
+            this.source = source;
+            this.compressionLevel = compressionLevel;
+            if (source != null) {
+                for (String string : source.strings) {
+                    stringId(string);
+                }
+            }
+        }
+
+        /**
+         * Copy the raw payload of a chunk of the file this writer was created with. Payloads of the current
+         * version are copied as they are unless they are deflated and this writer doesn't compress, others
+         * get converted when writing.
+         * @param chunk     The index of the chunk in the region
+         * @param payload   The raw payload
+         */
+        void rawChunk(int chunk, byte[] payload) {
+            if (chunkOut[chunk] != null) {
+                throw new IllegalStateException("Chunk " + chunk + " already has blocks written to it!");
+            }
+            rawChunks[chunk] = payload;
+        }
+
+        /**
+         * Start writing a new block, all following {@link #entry(String, String, Object)} calls belong to it
+         * @param x         The X coordinate of the block
+         * @param y         The Y coordinate of the block
+         * @param z         The Z coordinate of the block
+         * @param entries   The amount of entries that will get written for this block
+         */
+        void block(int x, int y, int z, int entries) throws IOException {
+            int chunk = chunkIndex(x, z);
+            if (rawChunks[chunk] != null) {
+                throw new IllegalStateException("Chunk " + chunk + " was already copied raw!");
+            }
+            if (chunkOut[chunk] == null) {
+                chunkData[chunk] = new ByteArrayOutputStream();
+                chunkOut[chunk] = new DataOutputStream(chunkData[chunk]);
+            }
+            current = chunkOut[chunk];
+            blockCounts[chunk]++;
+            current.writeByte((x & 15) << 4 | (z & 15));
+            writeSignedVarInt(current, y);
+            writeVarInt(current, entries);
+        }
+
+        /**
+         * Write an entry of the current block
+         * @param namespace The namespace of the entry's key
+         * @param key       The key of the entry
+         * @param value     The value
+         */
+        void entry(String namespace, String key, Object value) throws IOException {
+            if (current == null) {
+                throw new IllegalStateException("No block started!");
+            }
+            writeVarInt(current, stringId(namespace));
+            writeVarInt(current, stringId(key));
+            writeValue(current, value);
+        }
+
+        /**
+         * Write an entry of the current block directly from a block's info
+         * @param namespace The namespace of the entry's key
+         * @param key       The key of the entry
+         * @param info      The info of the block
+         * @param i         The index of the entry in the info
+         */
+        void entry(String namespace, String key, BlockInfo info, int i) throws IOException {
+            if (current == null) {
+                throw new IllegalStateException("No block started!");
+            }
+            writeVarInt(current, stringId(namespace));
+            writeVarInt(current, stringId(key));
+            writeValue(current, info, i);
+        }
+
+        /**
+         * Write an entry of the current block with an already encoded value
+         * @param namespace The namespace of the entry's key
+         * @param key       The key of the entry
+         * @param value     The tagged value as read by {@link #readRawEntries}
+         */
+        void rawEntry(String namespace, String key, byte[] value) throws IOException {
+            if (current == null) {
+                throw new IllegalStateException("No block started!");
+            }
+            writeVarInt(current, stringId(namespace));
+            writeVarInt(current, stringId(key));
+            current.write(value);
+        }
+
+        private int stringId(String string) {
+            Integer id = stringIds.get(string);
+            if (id == null) {
+                id = strings.size();
+                strings.add(string);
+                stringIds.put(string, id);
+            }
+            return id;
+        }
+
+        /**
+         * Check whether or not any block was written
+         * @return true if no block was written
+         */
+        boolean isEmpty() {
+            for (int i = 0; i < CHUNKS; i++) {
+                if (blockCounts[i] > 0 || rawChunks[i] != null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Write the collected data to a file
+         * @param file The file to write to
+         * @return The header of the written file
+         * @throws IOException When the file could not be written
+         */
+        Header write(File file) throws IOException {
+            byte[][] payloads = new byte[CHUNKS][];
+            Deflater deflater = compressionLevel != 0 ? new Deflater(compressionLevel) : null;
+            try {
+                for (int i = 0; i < CHUNKS; i++) {
+                    if (rawChunks[i] != null) {
+                        payloads[i] = recode(rawChunks[i], deflater);
+                    } else if (blockCounts[i] > 0) {
+                        ByteArrayOutputStream payload = new ByteArrayOutputStream(chunkData[i].size() + 5);
+                        DataOutputStream out = new DataOutputStream(payload);
+                        writeVarInt(out, blockCounts[i]);
+                        chunkData[i].writeTo(out);
+                        payloads[i] = encode(payload.toByteArray(), deflater);
+                    }
+                }
+            } finally {
+                if (deflater != null) {
+                    deflater.end();
+                }
+            }
+
+            ByteArrayOutputStream stringData = new ByteArrayOutputStream();
+            DataOutputStream stringOut = new DataOutputStream(stringData);
+            writeVarInt(stringOut, strings.size());
+            for (String string : strings) {
+                writeString(stringOut, string);
+            }
+
+            int[] offsets = new int[CHUNKS];
+            int[] lengths = new int[CHUNKS];
+            int offset = HEADER_SIZE;
+            for (int i = 0; i < CHUNKS; i++) {
+                if (payloads[i] != null) {
+                    offsets[i] = offset;
+                    lengths[i] = payloads[i].length;
+                    offset += payloads[i].length;
+                }
+            }
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(offset);
+                out.writeInt(stringData.size());
+                for (int i = 0; i < CHUNKS; i++) {
+                    out.writeInt(offsets[i]);
+                    out.writeInt(lengths[i]);
+                }
+                for (byte[] payload : payloads) {
+                    if (payload != null) {
+                        out.write(payload);
+                    }
+                }
+                stringData.writeTo(out);
+            }
+            return new Header(VERSION, offsets, lengths, strings.toArray(new String[0]));
+        }
+
+        /**
+         * Get the payload of a chunk which was copied raw as it is stored in the new file. Deflated payloads get
+         * decompressed if this writer doesn't compress so that e.g. files of worlds which are memory mapped after
+         * they were written compressed become readable in place once they get written. Uncompressed payloads are
+         * kept when compressing as {@link #encode(byte[], Deflater)} only stores them like that if deflating
+         * didn't make them smaller.
+         * @param raw       The raw payload from the source file
+         * @param deflater  The deflater to use, null if compression is disabled
+         * @return The payload as it is stored in the file
+         */
+        private byte[] recode(byte[] raw, Deflater deflater) throws IOException {
+            if (source.version >= 2 && (deflater != null || raw.length > 0 && raw[0] != COMPRESSION_DEFLATE)) {
+                return raw;
+            }
+            BufferInputStream plain = payload(ByteBuffer.wrap(raw), 0, raw.length, source);
+            return encode(plain.copy(plain.position, plain.end), deflater);
+        }
+
+        /**
+         * Add the compression byte to an uncompressed payload. The payload gets deflated
+         * if compression is enabled and the deflated payload is actually smaller.
+         * @param plain     The uncompressed payload
+         * @param deflater  The deflater to use, null if compression is disabled
+         * @return The payload as it is stored in the file
+         */
+        private static byte[] encode(byte[] plain, Deflater deflater) throws IOException {
+            if (deflater != null) {
+                deflater.reset();
+                deflater.setInput(plain);
+                deflater.finish();
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(plain.length / 2 + 8);
+                compressed.write(COMPRESSION_DEFLATE);
+                writeVarInt(new DataOutputStream(compressed), plain.length);
+                byte[] buffer = new byte[4096];
+                while (!deflater.finished()) {
+                    compressed.write(buffer, 0, deflater.deflate(buffer));
+                }
+                if (compressed.size() <= plain.length) {
+                    return compressed.toByteArray();
+                }
+            }
+            byte[] payload = new byte[plain.length + 1];
+            payload[0] = COMPRESSION_NONE;
+            System.arraycopy(plain, 0, payload, 1, plain.length);
+            return payload;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Interns the {@link Region.Location}s so that there is exactly one instance per region
+ * which can be used as the region's lock. Lookups of existing locations don't lock or
+ * allocate anything, new locations get inserted in place under the world's lock. The
+ * locations of a world are kept until the world gets unloaded as a location could still
+ * be used as a lock otherwise.
+ */
+class RegionLocations {
+
+    private final Map<UUID, WorldLocations> worlds = new ConcurrentHashMap<>();
+
+    /**
+     * Get the location of a region
+     * @param worldId   The ID of the region's world
+     * @param regionX   The X coordinate of the region
+     * @param regionZ   The Z coordinate of the region
+     * @return The interned location
+     */
+    Region.Location get(UUID worldId, int regionX, int regionZ) {
+        WorldLocations locations = worlds.get(worldId);
+        if (locations == null) {
+            locations = worlds.computeIfAbsent(worldId, WorldLocations::new);
+        }
+        return locations.get(regionX, regionZ);
+    }
+
+    /**
+     * Forget all locations of a world
+     * @param worldId   The ID of the world
+     */
+    void removeWorld(UUID worldId) {
+        worlds.remove(worldId);
+    }
+
+    private static long pack(int regionX, int regionZ) {
+        return (long) regionX << 32 | (regionZ & 0xFFFFFFFFL);
+    }
+
+    private static int hash(int regionX, int regionZ) {
+        long h = pack(regionX, regionZ) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * The locations of a world in an open addressing table with linear probing. Slots only
+     * ever get filled and are published with a volatile write, so readers which don't lock
+     * always see fully constructed locations. Growing the table publishes a new one.
+     */
+    private static class WorldLocations {
+        private final UUID worldId;
+        private volatile AtomicReferenceArray<Region.Location> table = new AtomicReferenceArray<>(64);
+        private int size = 0;
+
+        private WorldLocations(UUID worldId) {
+            this.worldId = worldId;
+        }
+
+        private Region.Location get(int regionX, int regionZ) {
+            Region.Location location = find(table, regionX, regionZ);
+            if (location != null) {
+                return location;
+            }
+            synchronized (this) {
+                AtomicReferenceArray<Region.Location> current = table;
+                location = find(current, regionX, regionZ);
+                if (location == null) {
+                    location = new Region.Location(worldId, regionX, regionZ);
+                    if ((size + 1) * 4 > current.length() * 3) {
+                        current = resize(current);
+                    }
+                    insert(current, location);
+                    size++;
+                    table = current;
+                }
+                return location;
+            }
+        }
+
+        private static Region.Location find(AtomicReferenceArray<Region.Location> table, int regionX, int regionZ) {
+            int mask = table.length() - 1;
+            for (int i = hash(regionX, regionZ) & mask; ; i = (i + 1) & mask) {
+                Region.Location location = table.get(i);
+                if (location == null || location.getX() == regionX && location.getZ() == regionZ) {
+                    return location;
+                }
+            }
+        }
+
+        private static void insert(AtomicReferenceArray<Region.Location> table, Region.Location location) {
+            int mask = table.length() - 1;
+            int i = hash(location.getX(), location.getZ()) & mask;
+            while (table.get(i) != null) {
+                i = (i + 1) & mask;
+            }
+            table.set(i, location);
+        }
+
+        private static AtomicReferenceArray<Region.Location> resize(AtomicReferenceArray<Region.Location> table) {
+            AtomicReferenceArray<Region.Location> resized = new AtomicReferenceArray<>(table.length() * 2);
+            for (int i = 0; i < table.length(); i++) {
+                Region.Location location = table.get(i);
+                if (location != null) {
+                    insert(resized, location);
+                }
+            }
+            return resized;
+        }
+    }
+}
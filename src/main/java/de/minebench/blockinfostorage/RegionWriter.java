@@ -0,0 +1,236 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes modified regions to the disk on a bounded amount of dedicated threads. Every region is
+ * always written by the same thread so writes of different regions run in parallel while the
+ * writes of one region never overlap. Save requests for a region which is already queued get
+ * merged into the queued write.
+ */
+class RegionWriter {
+
+    private final Logger logger;
+    private final ExecutorService[] executors;
+    private final ExecutorService maintenance = Executors.newSingleThreadExecutor(r -> new Thread(r, "BlockInfoStorage Maintenance"));
+
+    private final Map<Region.Location, Region> queued = new ConcurrentHashMap<>();
+    private final Map<Region.Location, Region> writing = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new writer
+     * @param logger    The logger to log errors to
+     * @param threads   The amount of regions that can be written in parallel
+     */
+    RegionWriter(Logger logger, int threads) {
+        this.logger = logger;
+        this.executors = new ExecutorService[Math.max(1, threads)];
+        AtomicInteger threadId = new AtomicInteger();
+        for (int i = 0; i < executors.length; i++) {
+            executors[i] = Executors.newSingleThreadExecutor(r -> new Thread(r, "BlockInfoStorage Writer #" + threadId.incrementAndGet()));
+        }
+    }
+
+    private ExecutorService getExecutor(Region.Location location) {
+        return executors[Math.floorMod(location.hashCode(), executors.length)];
+    }
+
+    /**
+     * Queue a region to be written if it was modified
+     * @param region The region to save
+     */
+    void save(Region region) {
+        if (!region.isModified()) {
+            return;
+        }
+        if (queued.putIfAbsent(region.getLocation(), region) == null) {
+            try {
+                getExecutor(region.getLocation()).execute(() -> write(region));
+            } catch (RejectedExecutionException e) {
+                // Already shut down, write it on the calling thread
+                write(region);
+            }
+        }
+    }
+
+    /**
+     * Queue a key index to be written if it was modified
+     * @param index The index to save
+     */
+    void save(KeyIndex index) {
+        if (!index.isModified() || !index.markQueued()) {
+            return;
+        }
+        Runnable task = () -> {
+            try {
+                index.save();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Error while trying to save block info key index", e);
+            }
+        };
+        try {
+            maintenance.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    private boolean write(Region region) {
+        Region.Location location = region.getLocation();
+        boolean success = true;
+        writing.put(location, region);
+        try {
+            // Remove it from the queue before taking the snapshot so that later modifications queue a new write
+            queued.remove(location, region);
+            Region.Snapshot snapshot = region.snapshot();
+            if (snapshot != null) {
+                try {
+                    region.write(snapshot);
+                } catch (IOException e) {
+                    success = false;
+                    region.markModified(snapshot);
+                    logger.log(Level.SEVERE, "Error while trying to save block info for region " + location, e);
+                }
+            }
+        } finally {
+            writing.remove(location, region);
+        }
+        if (region.isEvicted() && region.isModified()) {
+            // Modified through a reference obtained before it got evicted
+            save(region);
+        }
+        return success;
+    }
+
+    /**
+     * Write a region on the thread that is responsible for it and wait for the write to finish
+     * @param region    The region to write
+     * @return Whether or not the region was written successfully
+     */
+    private CompletableFuture<Boolean> writeAsync(Region region) {
+        try {
+            return CompletableFuture.supplyAsync(() -> write(region), getExecutor(region.getLocation()));
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.completedFuture(write(region));
+        }
+    }
+
+    /**
+     * Queue the compaction of a world's journal. The journal gets rotated, then all regions which
+     * can have changes in it get written in parallel and the old journal is deleted if all of them succeeded.
+     * @param journal   The journal to compact
+     * @param worldId   The ID of the journal's world
+     * @param regions   Supplies the loaded regions of the world, this includes regions which
+     *                  have to be loaded to apply records that weren't replayed yet
+     */
+    void compact(Journal journal, UUID worldId, Supplier<Collection<Region>> regions) {
+        Runnable task = () -> {
+            try {
+                if (!journal.rotate()) {
+                    return;
+                }
+                boolean success = true;
+                List<Region> toWrite = new ArrayList<>(regions.get());
+                for (Region region : queued.values()) {
+                    if (region.getLocation().getWorldId().equals(worldId)) {
+                        toWrite.add(region);
+                    }
+                }
+                List<CompletableFuture<Boolean>> writes = new ArrayList<>(toWrite.size());
+                for (Region region : toWrite) {
+                    writes.add(writeAsync(region));
+                }
+                for (CompletableFuture<Boolean> write : writes) {
+                    success &= write.join();
+                }
+                if (success) {
+                    journal.finishCompaction();
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.SEVERE, "Error while trying to compact block info journal of world " + worldId, e);
+            }
+        };
+        try {
+            maintenance.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    /**
+     * Get a region which is queued or currently being written. Such a region has to be used
+     * instead of loading it from the disk as the file might not contain its latest data yet.
+     * @param location The location of the region
+     * @return The region or null if it has no pending write
+     */
+    Region getUnsaved(Region.Location location) {
+        Region region = queued.get(location);
+        return region != null ? region : writing.get(location);
+    }
+
+    /**
+     * Get the amount of regions which are waiting to be written
+     * @return The amount of queued regions
+     */
+    int getQueueSize() {
+        return queued.size();
+    }
+
+    /**
+     * Stop accepting new writes and wait for all pending ones to finish
+     * @param timeout   The maximum time to wait
+     * @param unit      The unit of the timeout
+     * @return Whether or not all pending writes finished in time
+     */
+    boolean shutdown(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        try {
+            // Compactions still need to queue their writes
+            maintenance.shutdown();
+            boolean terminated = maintenance.awaitTermination(timeout, unit);
+            for (ExecutorService executor : executors) {
+                executor.shutdown();
+            }
+            for (ExecutorService executor : executors) {
+                terminated &= executor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+            return terminated;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
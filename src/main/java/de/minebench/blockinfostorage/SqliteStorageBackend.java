@@ -0,0 +1,364 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.bukkit.NamespacedKey;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Stores the block info of every world in an SQLite database in the world's block info folder.
+ * Every block is its own row, a write only upserts and deletes the modified blocks of a region
+ * in one transaction and chunks get read with a range query on the primary key. Regions which
+ * have no data in the database yet get imported from their region files when they are loaded,
+ * the files are deleted once the region was written to the database.
+ * The SQLite JDBC driver isn't bundled, the one that the server ships is used.
+ */
+class SqliteStorageBackend implements StorageBackend {
+
+    private static final String DATABASE_FILE = "blockinfo.db";
+
+    private final Function<UUID, File> folders;
+    private final FileStorageBackend files;
+    private final Map<UUID, Database> databases = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new SQLite backend
+     * @param folders   Get the block info folder of a world by its ID
+     * @param files     The backend to import existing region files from
+     * @throws IllegalStateException When the SQLite JDBC driver isn't available
+     */
+    SqliteStorageBackend(Function<UUID, File> folders, FileStorageBackend files) {
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("The SQLite JDBC driver is not available!", e);
+        }
+        this.folders = folders;
+        this.files = files;
+    }
+
+    private Database getDatabase(UUID worldId) throws IOException {
+        try {
+            return databases.computeIfAbsent(worldId, id -> {
+                File file = new File(folders.apply(id), DATABASE_FILE);
+                try {
+                    return new Database(file);
+                } catch (SQLException e) {
+                    throw new UncheckedIOException(new IOException("Unable to open block info database " + file, e));
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public boolean writesBlocks() {
+        return true;
+    }
+
+    /**
+     * Query which chunks of the region have rows. If there are none then the region's files
+     * get read completely so that their data gets written into the database on the next save.
+     */
+    @Override
+    public Stored load(Region.Location location, RegionFile.EntryConsumer migrated) throws IOException {
+        Database database = getDatabase(location.getWorldId());
+        RegionData data;
+        synchronized (database) {
+            data = database.getRegion(location);
+        }
+        if (data != null) {
+            return data;
+        }
+        Stored fileData = files.load(location, migrated);
+        if (fileData != null) {
+            for (int chunk = 0; chunk < RegionFile.CHUNKS; chunk++) {
+                if (fileData.hasChunk(chunk)) {
+                    files.readChunk(location, fileData, chunk, migrated);
+                }
+            }
+        }
+        // Delete the region's files once the data is in the database, if there are any
+        return new RegionData(new long[RegionFile.CHUNKS / 64], true);
+    }
+
+    @Override
+    public long readChunk(Region.Location location, Stored stored, int chunk, RegionFile.EntryConsumer consumer) throws IOException {
+        Database database = getDatabase(location.getWorldId());
+        long bytes = 0;
+        synchronized (database) {
+            try {
+                database.selectChunk.setInt(1, location.getX());
+                database.selectChunk.setInt(2, location.getZ());
+                database.selectChunk.setInt(3, chunk);
+                try (ResultSet result = database.selectChunk.executeQuery()) {
+                    while (result.next()) {
+                        byte[] data = result.getBytes(4);
+                        decode(data, result.getInt(1), result.getInt(2), result.getInt(3), consumer);
+                        bytes += data.length;
+                    }
+                }
+            } catch (SQLException e) {
+                throw new IOException("Unable to read chunk " + chunk + " of region " + location, e);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Read all rows of the world's database and the region files of regions which weren't imported yet
+     */
+    @Override
+    public void readAll(UUID worldId, RegionFile.EntryConsumer consumer) throws IOException {
+        Database database = getDatabase(worldId);
+        Set<Long> regions = new HashSet<>();
+        synchronized (database) {
+            try (Statement statement = database.connection.createStatement();
+                 ResultSet result = statement.executeQuery("SELECT region_x, region_z, x, y, z, data FROM blocks")) {
+                while (result.next()) {
+                    regions.add(regionKey(result.getInt(1), result.getInt(2)));
+                    decode(result.getBytes(6), result.getInt(3), result.getInt(4), result.getInt(5), consumer);
+                }
+            } catch (SQLException e) {
+                throw new IOException("Unable to read the block info database of world " + worldId, e);
+            }
+        }
+        files.readAll(worldId, (x, y, z, namespace, key, value) -> {
+            if (!regions.contains(regionKey(x >> 9, z >> 9))) {
+                consumer.accept(x, y, z, namespace, key, value);
+            }
+        });
+    }
+
+    private static long regionKey(int regionX, int regionZ) {
+        return (long) regionX << 32 | regionZ & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Upsert the modified blocks and delete the ones without info in one transaction
+     */
+    @Override
+    public Commit write(Region.Location location, Region.Snapshot snapshot) throws IOException {
+        Database database = getDatabase(location.getWorldId());
+        long[] bytes = new long[1];
+        RegionData data;
+        synchronized (database) {
+            try {
+                database.connection.setAutoCommit(false);
+                try {
+                    for (int chunk = 0; chunk < RegionFile.CHUNKS; chunk++) {
+                        int chunkIndex = chunk;
+                        snapshot.forEachBlock(chunk, (x, y, z, info) -> {
+                            try {
+                                if (info != null && !info.isEmpty()) {
+                                    byte[] encoded = encode(info);
+                                    database.setBlock(database.upsert, location, chunkIndex, x, y, z);
+                                    database.upsert.setBytes(7, encoded);
+                                    database.upsert.addBatch();
+                                    bytes[0] += encoded.length;
+                                } else {
+                                    database.setBlock(database.delete, location, chunkIndex, x, y, z);
+                                    database.delete.addBatch();
+                                }
+                            } catch (SQLException e) {
+                                throw new IOException("Unable to write block " + x + "," + y + "," + z, e);
+                            }
+                        });
+                    }
+                    database.upsert.executeBatch();
+                    database.delete.executeBatch();
+                    database.connection.commit();
+                } catch (IOException | SQLException e) {
+                    try {
+                        database.upsert.clearBatch();
+                        database.delete.clearBatch();
+                        database.connection.rollback();
+                    } catch (SQLException rollbackException) {
+                        // Don't hide the reason why the write failed
+                        e.addSuppressed(rollbackException);
+                    }
+                    throw e;
+                } finally {
+                    database.connection.setAutoCommit(true);
+                }
+                data = database.getRegion(location);
+            } catch (SQLException e) {
+                throw new IOException("Unable to write region " + location, e);
+            }
+        }
+        Metrics.REGION_SAVE_BYTES.record(bytes[0]);
+        RegionData previous = (RegionData) snapshot.getStored();
+        boolean imported = previous != null && previous.importing;
+        return () -> {
+            if (imported) {
+                files.delete(location);
+            }
+            return data;
+        };
+    }
+
+    @Override
+    public void close() {
+        for (Database database : databases.values()) {
+            synchronized (database) {
+                try {
+                    database.connection.close();
+                } catch (SQLException e) {
+                    // Closing anyways
+                }
+            }
+        }
+        databases.clear();
+    }
+
+    /**
+     * Encode all entries of a block. Unlike in region files the strings are written inline.
+     */
+    private static byte[] encode(BlockInfo info) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(info.size() * 32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        RegionFile.writeVarInt(out, info.size());
+        for (int i = 0; i < info.size(); i++) {
+            NamespacedKey key = KeyRegistry.key(info.keyAt(i));
+            RegionFile.writeString(out, key.getNamespace());
+            RegionFile.writeString(out, key.getKey());
+            RegionFile.writeValue(out, info, i);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void decode(byte[] data, int x, int y, int z, RegionFile.EntryConsumer consumer) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int entries = RegionFile.readVarInt(in);
+        for (int i = 0; i < entries; i++) {
+            String namespace = RegionFile.readString(in);
+            String key = RegionFile.readString(in);
+            consumer.accept(x, y, z, namespace, key, RegionFile.readValue(in));
+        }
+    }
+
+    /**
+     * The connection to the database of a world. Access has to be synchronized on the instance.
+     */
+    private static class Database {
+        private final Connection connection;
+        private final PreparedStatement selectChunks;
+        private final PreparedStatement selectChunk;
+        private final PreparedStatement upsert;
+        private final PreparedStatement delete;
+
+        private Database(File file) throws SQLException {
+            file.getParentFile().mkdirs();
+            connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("PRAGMA journal_mode=WAL");
+                statement.execute("PRAGMA synchronous=NORMAL");
+                statement.execute("CREATE TABLE IF NOT EXISTS blocks ("
+                        + "region_x INTEGER NOT NULL, region_z INTEGER NOT NULL, chunk INTEGER NOT NULL, "
+                        + "x INTEGER NOT NULL, y INTEGER NOT NULL, z INTEGER NOT NULL, data BLOB NOT NULL, "
+                        + "PRIMARY KEY (region_x, region_z, chunk, x, y, z)) WITHOUT ROWID");
+            }
+            selectChunks = connection.prepareStatement("SELECT DISTINCT chunk FROM blocks WHERE region_x = ? AND region_z = ?");
+            selectChunk = connection.prepareStatement("SELECT x, y, z, data FROM blocks WHERE region_x = ? AND region_z = ? AND chunk = ?");
+            upsert = connection.prepareStatement("INSERT OR REPLACE INTO blocks (region_x, region_z, chunk, x, y, z, data) VALUES (?, ?, ?, ?, ?, ?, ?)");
+            delete = connection.prepareStatement("DELETE FROM blocks WHERE region_x = ? AND region_z = ? AND chunk = ? AND x = ? AND y = ? AND z = ?");
+        }
+
+        private void setBlock(PreparedStatement statement, Region.Location location, int chunk, int x, int y, int z) throws SQLException {
+            statement.setInt(1, location.getX());
+            statement.setInt(2, location.getZ());
+            statement.setInt(3, chunk);
+            statement.setInt(4, x);
+            statement.setInt(5, y);
+            statement.setInt(6, z);
+        }
+
+        /**
+         * Query which chunks of a region have rows
+         * @param location  The location of the region
+         * @return The region's data or null if it has no rows
+         */
+        private RegionData getRegion(Region.Location location) throws IOException {
+            long[] chunks = new long[RegionFile.CHUNKS / 64];
+            boolean empty = true;
+            try {
+                selectChunks.setInt(1, location.getX());
+                selectChunks.setInt(2, location.getZ());
+                try (ResultSet result = selectChunks.executeQuery()) {
+                    while (result.next()) {
+                        int chunk = result.getInt(1);
+                        chunks[chunk >> 6] |= 1L << chunk;
+                        empty = false;
+                    }
+                }
+            } catch (SQLException e) {
+                throw new IOException("Unable to query the chunks of region " + location, e);
+            }
+            return empty ? null : new RegionData(chunks, false);
+        }
+    }
+
+    /**
+     * The chunks of a region which have rows in the database
+     */
+    private static class RegionData implements Stored {
+        private final long[] chunks;
+        private final boolean importing;
+
+        private RegionData(long[] chunks, boolean importing) {
+            this.chunks = chunks;
+            this.importing = importing;
+        }
+
+        @Override
+        public boolean hasChunk(int chunk) {
+            return (chunks[chunk >> 6] & 1L << chunk) != 0;
+        }
+
+        @Override
+        public boolean readsInPlace() {
+            return false;
+        }
+
+        @Override
+        public boolean readBlock(int x, int y, int z, String namespace, String key, RegionFile.EntryConsumer consumer) {
+            throw new UnsupportedOperationException("Blocks can't be read in place from the database!");
+        }
+    }
+}
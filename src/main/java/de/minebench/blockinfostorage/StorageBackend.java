@@ -0,0 +1,128 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Persists the data of regions. The methods get called from multiple threads but never
+ * concurrently for the same region, apart from {@link #readChunk} which may run while
+ * a region is written. The data that a backend has stored for a region is represented
+ * by a {@link Stored} object which the region keeps until the next write replaces it.
+ */
+interface StorageBackend {
+
+    /**
+     * Check whether or not this backend writes single blocks. Snapshots then only contain the
+     * blocks which were modified, otherwise they contain all blocks of the modified chunks.
+     * @return true if only modified blocks get written
+     */
+    boolean writesBlocks();
+
+    /**
+     * Load which chunks of a region have stored data. The data of the chunks gets read via {@link #readChunk}.
+     * @param location  The location of the region
+     * @param migrated  Receives data that is still stored in an older format. It gets
+     *                  stored by this backend on the next write of the region.
+     * @return The stored data or null if there is none
+     * @throws IOException When the region could not be loaded
+     */
+    Stored load(Region.Location location, RegionFile.EntryConsumer migrated) throws IOException;
+
+    /**
+     * Read all stored entries of a chunk
+     * @param location  The location of the region
+     * @param stored    The stored data of the region as returned by {@link #load} or {@link Commit#apply()}
+     * @param chunk     The index of the chunk in the region
+     * @param consumer  The consumer to pass the entries to
+     * @return The amount of bytes that were read
+     * @throws IOException When the chunk could not be read
+     */
+    long readChunk(Region.Location location, Stored stored, int chunk, RegionFile.EntryConsumer consumer) throws IOException;
+
+    /**
+     * Read all stored entries of a world. Regions which can't be read get logged and skipped.
+     * @param worldId   The ID of the world
+     * @param consumer  The consumer to pass the entries to
+     * @throws IOException When the consumer throws it
+     */
+    void readAll(UUID worldId, RegionFile.EntryConsumer consumer) throws IOException;
+
+    /**
+     * Write the modified data of a region. Readers of the region aren't affected until the
+     * returned commit gets applied, this gets done while holding the region's lock.
+     * @param location  The location of the region
+     * @param snapshot  The snapshot of the region's modified data
+     * @return The commit which makes the written data visible
+     * @throws IOException When the data could not be written
+     */
+    Commit write(Region.Location location, Region.Snapshot snapshot) throws IOException;
+
+    /**
+     * Release all resources of this backend, it can't be used anymore afterwards
+     */
+    void close();
+
+    /**
+     * The data that a backend has stored for a region
+     */
+    interface Stored {
+
+        /**
+         * Check whether or not there is stored data for a chunk
+         * @param chunk The index of the chunk in the region
+         * @return true if there is data for the chunk
+         */
+        boolean hasChunk(int chunk);
+
+        /**
+         * Check whether or not single blocks can be read in place via {@link #readBlock}
+         * without reading their whole chunk
+         * @return true if blocks can be read in place
+         */
+        boolean readsInPlace();
+
+        /**
+         * Read the entries of a single block in place. Only supported if {@link #readsInPlace()} is true.
+         * @param x         The X coordinate of the block
+         * @param y         The Y coordinate of the block
+         * @param z         The Z coordinate of the block
+         * @param namespace The namespace of the entries to read, null to read all entries
+         * @param key       The key of the entries to read, null to read all entries of the namespace
+         * @param consumer  The consumer to pass the matching entries to, null to only check for them
+         * @return Whether or not the block has a matching entry
+         * @throws IOException When the block could not be read
+         */
+        boolean readBlock(int x, int y, int z, String namespace, String key, RegionFile.EntryConsumer consumer) throws IOException;
+    }
+
+    /**
+     * Makes written data visible to the readers of a region
+     */
+    interface Commit {
+
+        /**
+         * Make the written data visible
+         * @return The stored data of the region after the write, null if there is none
+         * @throws IOException When the data could not be committed
+         */
+        Stored apply() throws IOException;
+    }
+}
@@ -0,0 +1,275 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.bukkit.World;
+import org.bukkit.plugin.Plugin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The registered {@link BlockInfoSubscription}s and the modifications which weren't delivered to them yet.
+ * Regions check {@link #isWatched(int, UUID, int, int)} before publishing a modification, for keys
+ * without any subscription that is a single array lookup so their modifications don't cost anything extra.
+ */
+class Subscriptions {
+
+    private final Logger logger;
+    private final List<BlockInfoSubscription> subscriptions = new ArrayList<>();
+    // Indexed by key id, only gets replaced as a whole so that it can be read without locking
+    private volatile Watch[] watches = new Watch[0];
+    private final Map<Change, Change> pending = new LinkedHashMap<>();
+
+    Subscriptions(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Pack the coordinates of a chunk or region into a single long
+     */
+    static long packScope(int x, int z) {
+        return (long) x << 32 | z & 0xFFFFFFFFL;
+    }
+
+    synchronized void add(BlockInfoSubscription subscription) {
+        subscriptions.add(subscription);
+        rebuild(subscription.getKeyId());
+    }
+
+    synchronized void remove(BlockInfoSubscription subscription) {
+        if (subscriptions.remove(subscription)) {
+            rebuild(subscription.getKeyId());
+        }
+    }
+
+    /**
+     * Cancel all subscriptions of a plugin
+     * @param plugin    The plugin
+     */
+    void cancel(Plugin plugin) {
+        List<BlockInfoSubscription> cancelled = new ArrayList<>();
+        synchronized (this) {
+            for (BlockInfoSubscription subscription : subscriptions) {
+                if (subscription.getPlugin() == plugin) {
+                    cancelled.add(subscription);
+                }
+            }
+        }
+        cancelled.forEach(BlockInfoSubscription::cancel);
+    }
+
+    private void rebuild(int keyId) {
+        List<BlockInfoSubscription> matching = new ArrayList<>();
+        for (BlockInfoSubscription subscription : subscriptions) {
+            if (subscription.getKeyId() == keyId) {
+                matching.add(subscription);
+            }
+        }
+        Watch[] updated = Arrays.copyOf(watches, Math.max(watches.length, keyId + 1));
+        updated[keyId] = matching.isEmpty() ? null : new Watch(matching);
+        watches = updated;
+    }
+
+    /**
+     * Check whether or not there is a subscription for modifications of a key on a block
+     * @param keyId     The {@link KeyRegistry} id of the key
+     * @param worldId   The ID of the block's world
+     * @param x         The X coordinate of the block
+     * @param z         The Z coordinate of the block
+     * @return true if a modification needs to be published
+     */
+    boolean isWatched(int keyId, UUID worldId, int x, int z) {
+        Watch[] watches = this.watches;
+        return keyId < watches.length && watches[keyId] != null && watches[keyId].matches(worldId, x, z);
+    }
+
+    /**
+     * Collect a modification until the next {@link #flush(Function)}. It replaces the
+     * modification of the same key on the same block which wasn't delivered yet.
+     * @param worldId   The ID of the block's world
+     * @param x         The X coordinate of the block
+     * @param y         The Y coordinate of the block
+     * @param z         The Z coordinate of the block
+     * @param keyId     The {@link KeyRegistry} id of the key
+     * @param value     The new value, null if the key got removed
+     */
+    void publish(UUID worldId, int x, int y, int z, int keyId, Object value) {
+        Change change = new Change(worldId, x, y, z, keyId, value);
+        synchronized (pending) {
+            pending.put(change, change);
+        }
+    }
+
+    /**
+     * Deliver the collected modifications to the subscriptions which currently match them.
+     * Every listener gets called at most once, this should run on the main thread once per tick.
+     * @param worlds    The function to look up loaded worlds by their ID
+     */
+    void flush(Function<UUID, World> worlds) {
+        List<Change> changes;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            changes = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+        Watch[] watches = this.watches;
+        Map<BlockInfoSubscription, List<BlockInfoChange>> notifications = new LinkedHashMap<>();
+        List<BlockInfoSubscription> matching = new ArrayList<>();
+        for (Change change : changes) {
+            Watch watch = change.keyId < watches.length ? watches[change.keyId] : null;
+            if (watch == null) {
+                continue;
+            }
+            watch.collect(change.worldId, change.x, change.z, matching);
+            World world = !matching.isEmpty() ? worlds.apply(change.worldId) : null;
+            if (world != null) {
+                BlockInfoChange notification = new BlockInfoChange(world, change.x, change.y, change.z,
+                        KeyRegistry.key(change.keyId), change.value);
+                for (BlockInfoSubscription subscription : matching) {
+                    notifications.computeIfAbsent(subscription, s -> new ArrayList<>()).add(notification);
+                }
+            }
+            matching.clear();
+        }
+        for (Map.Entry<BlockInfoSubscription, List<BlockInfoChange>> entry : notifications.entrySet()) {
+            BlockInfoSubscription subscription = entry.getKey();
+            // A listener which was called before could have cancelled it
+            if (subscription.isCancelled()) {
+                continue;
+            }
+            try {
+                subscription.getListener().onChange(Collections.unmodifiableList(entry.getValue()));
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Could not pass block info changes to " + subscription.getPlugin().getName(), e);
+            }
+        }
+    }
+
+    /**
+     * The subscriptions of a single key, grouped by their scope
+     */
+    private static class Watch {
+        private final List<BlockInfoSubscription> unscoped = new ArrayList<>();
+        private final LongObjectHashMap<List<BlockInfoSubscription>> chunks = new LongObjectHashMap<>();
+        private final LongObjectHashMap<List<BlockInfoSubscription>> regions = new LongObjectHashMap<>();
+
+        private Watch(List<BlockInfoSubscription> subscriptions) {
+            for (BlockInfoSubscription subscription : subscriptions) {
+                if (subscription.getShift() < 0) {
+                    unscoped.add(subscription);
+                } else {
+                    LongObjectHashMap<List<BlockInfoSubscription>> scopes = subscription.getShift() == BlockInfoSubscription.CHUNK ? chunks : regions;
+                    List<BlockInfoSubscription> list = scopes.get(subscription.getScope());
+                    if (list == null) {
+                        list = new ArrayList<>();
+                        scopes.put(subscription.getScope(), list);
+                    }
+                    list.add(subscription);
+                }
+            }
+        }
+
+        private boolean matches(UUID worldId, int x, int z) {
+            return !unscoped.isEmpty()
+                    || matches(chunks.get(packScope(x >> BlockInfoSubscription.CHUNK, z >> BlockInfoSubscription.CHUNK)), worldId, x, z)
+                    || matches(regions.get(packScope(x >> BlockInfoSubscription.REGION, z >> BlockInfoSubscription.REGION)), worldId, x, z);
+        }
+
+        private static boolean matches(List<BlockInfoSubscription> subscriptions, UUID worldId, int x, int z) {
+            if (subscriptions != null) {
+                for (BlockInfoSubscription subscription : subscriptions) {
+                    if (subscription.matches(worldId, x, z)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private void collect(UUID worldId, int x, int z, List<BlockInfoSubscription> matching) {
+            matching.addAll(unscoped);
+            collect(chunks.get(packScope(x >> BlockInfoSubscription.CHUNK, z >> BlockInfoSubscription.CHUNK)), worldId, x, z, matching);
+            collect(regions.get(packScope(x >> BlockInfoSubscription.REGION, z >> BlockInfoSubscription.REGION)), worldId, x, z, matching);
+        }
+
+        private static void collect(List<BlockInfoSubscription> subscriptions, UUID worldId, int x, int z, List<BlockInfoSubscription> matching) {
+            if (subscriptions != null) {
+                for (BlockInfoSubscription subscription : subscriptions) {
+                    if (subscription.matches(worldId, x, z)) {
+                        matching.add(subscription);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A modification which wasn't delivered yet, it is equal to the other modifications of the same key on the same block
+     */
+    private static class Change {
+        private final UUID worldId;
+        private final int x;
+        private final int y;
+        private final int z;
+        private final int keyId;
+        private final Object value;
+
+        private Change(UUID worldId, int x, int y, int z, int keyId, Object value) {
+            this.worldId = worldId;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.keyId = keyId;
+            this.value = value;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = worldId.hashCode();
+            result = 31 * result + x;
+            result = 31 * result + y;
+            result = 31 * result + z;
+            result = 31 * result + keyId;
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Change change = (Change) o;
+            return x == change.x && y == change.y && z == change.z && keyId == change.keyId && worldId.equals(change.worldId);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package de.minebench.blockinfostorage;
+
+/*
+ * BlockInfoStorage
+ * Copyright (c) 2019 Max Lee aka Phoenix616 (mail@moep.tv)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.bukkit.Location;
+import org.bukkit.NamespacedKey;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+import java.util.Map;
+
+/**
+ * A copy of the info that was stored on a block at the time it was queried
+ */
+public class TaggedBlock {
+
+    private final World world;
+    private final int x;
+    private final int y;
+    private final int z;
+    private final Map<NamespacedKey, Object> values;
+
+    TaggedBlock(World world, int x, int y, int z, Map<NamespacedKey, Object> values) {
+        this.world = world;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.values = values;
+    }
+
+    public World getWorld() {
+        return world;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public int getZ() {
+        return z;
+    }
+
+    /**
+     * Get the location of the block
+     * @return A new location of the block
+     */
+    public Location getLocation() {
+        return new Location(world, x, y, z);
+    }
+
+    /**
+     * Get the block, this should only be used on the main thread
+     * @return The block
+     */
+    public Block getBlock() {
+        return world.getBlockAt(x, y, z);
+    }
+
+    /**
+     * Get all values stored on the block
+     * @return An unmodifiable map of the keys and their values
+     */
+    public Map<NamespacedKey, Object> getValues() {
+        return values;
+    }
+
+    /**
+     * Get a value stored on the block
+     * @param key   The key of the value
+     * @return The value or null if the block has none for that key
+     */
+    public Object getValue(NamespacedKey key) {
+        return values.get(key);
+    }
+
+    @Override
+    public String toString() {
+        return "TaggedBlock{world=" + world.getName() + ", x=" + x + ", y=" + y + ", z=" + z + ", values=" + values + "}";
+    }
+}